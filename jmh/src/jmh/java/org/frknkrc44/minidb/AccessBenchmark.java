@@ -0,0 +1,125 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory put and get paths, including the cipher and the value codec.
+ * Run with -PjmhThreads to measure them under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessBenchmark {
+    @Param({"1000", "100000"})
+    public int keyCount;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    @Param({BenchmarkData.CIPHER_YA, BenchmarkData.CIPHER_AES})
+    public String cipher;
+
+    private File dir;
+    private SuperMiniDB db;
+    private String value;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkData.tempDir();
+        db = new SuperMiniDB(BenchmarkData.DB_NAME, dir,
+                BenchmarkData.options(cipher, SuperMiniDB.STORAGE_ENGINE_LEGACY));
+
+        Random random = new Random(7);
+        value = BenchmarkData.text(random, valueSize);
+        bytes = BenchmarkData.bytes(random, valueSize);
+
+        BenchmarkData.fill(db, keyCount, valueSize, false);
+        for (int i = 0; i < keyCount; i++) {
+            db.putLong("long-" + i, i);
+            db.putDouble("double-" + i, i / 3.0);
+            db.putBytes("bytes-" + i, bytes);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        BenchmarkData.delete(dir);
+    }
+
+    private int next() {
+        return ThreadLocalRandom.current().nextInt(keyCount);
+    }
+
+    @Benchmark
+    public String getString() {
+        return db.getString(BenchmarkData.key(next()), null);
+    }
+
+    @Benchmark
+    public void putString() {
+        db.putString(BenchmarkData.key(next()), value);
+    }
+
+    @Benchmark
+    public long getLong() {
+        return db.getLong("long-" + next(), 0);
+    }
+
+    @Benchmark
+    public void putLong() {
+        int i = next();
+        db.putLong("long-" + i, i);
+    }
+
+    @Benchmark
+    public double getDouble() {
+        return db.getDouble("double-" + next(), 0);
+    }
+
+    @Benchmark
+    public void putDouble() {
+        int i = next();
+        db.putDouble("double-" + i, i / 3.0);
+    }
+
+    @Benchmark
+    public byte[] getBytes() {
+        return db.getBytes("bytes-" + next(), null);
+    }
+
+    @Benchmark
+    public void putBytes() {
+        db.putBytes("bytes-" + next(), bytes);
+    }
+}
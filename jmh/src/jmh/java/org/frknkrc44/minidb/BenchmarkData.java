@@ -0,0 +1,66 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Shared helpers for the benchmarks
+ */
+final class BenchmarkData {
+    static final String DB_NAME = "bench";
+    static final String CIPHER_YA = "YA", CIPHER_AES = "AES";
+
+    private BenchmarkData() {}
+
+    static File tempDir() throws IOException {
+        return Files.createTempDirectory("smdb-bench").toFile();
+    }
+
+    static void delete(File dir) {
+        StorageEngine.removeRecursive(dir);
+    }
+
+    static DBOptions options(String cipher, String engine) {
+        return new DBOptions()
+                .setNotRead(true)
+                .setUseAes(CIPHER_AES.equals(cipher))
+                .setStorageEngine(engine)
+                .setLogProvider(text -> {});
+    }
+
+    static String key(int i) {
+        return "key-" + i;
+    }
+
+    static String text(Random random, int length) {
+        char[] out = new char[length];
+        for (int i = 0; i < length; i++) {
+            out[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(out);
+    }
+
+    static byte[] bytes(Random random, int length) {
+        byte[] out = new byte[length];
+        random.nextBytes(out);
+        return out;
+    }
+
+    static void fill(SuperMiniDB db, int keyCount, int valueSize, boolean permanent) {
+        Random random = new Random(42);
+        for (int i = 0; i < keyCount; i++) {
+            db.putString(key(i), text(random, valueSize), permanent);
+        }
+    }
+}
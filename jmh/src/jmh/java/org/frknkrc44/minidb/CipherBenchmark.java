@@ -0,0 +1,66 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw cipher encode and decode, without the database around them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark {
+    @Param({BenchmarkData.CIPHER_YA, BenchmarkData.CIPHER_AES})
+    public String cipher;
+
+    @Param({"16", "256", "4096"})
+    public int valueSize;
+
+    private BaseCipher impl;
+    private byte[] plain;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        byte[] key = (BenchmarkData.DB_NAME + "-key").getBytes(StandardCharsets.UTF_8);
+        impl = BenchmarkData.CIPHER_AES.equals(cipher) ? new AESCipher(key) : new YACipher(key);
+        plain = BenchmarkData.bytes(new Random(3), valueSize);
+        encoded = impl.encode(plain);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return impl.encode(plain);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return impl.decode(encoded);
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start (open and read every key) and full writes, per storage engine
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistBenchmark {
+    @Param({"1000", "10000"})
+    public int keyCount;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    @Param({BenchmarkData.CIPHER_YA, BenchmarkData.CIPHER_AES})
+    public String cipher;
+
+    @Param({SuperMiniDB.STORAGE_ENGINE_LEGACY, SuperMiniDB.STORAGE_ENGINE_LOG})
+    public String engine;
+
+    private File dir;
+    private SuperMiniDB db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkData.tempDir();
+        db = new SuperMiniDB(BenchmarkData.DB_NAME, dir, BenchmarkData.options(cipher, engine));
+        BenchmarkData.fill(db, keyCount, valueSize, true);
+        db.flush().get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public int readAllColdStart() {
+        SuperMiniDB opened = new SuperMiniDB(BenchmarkData.DB_NAME, dir,
+                BenchmarkData.options(cipher, engine).setNotRead(false));
+        try {
+            return opened.getLength();
+        } finally {
+            opened.close();
+        }
+    }
+
+    @Benchmark
+    public void writeAll() {
+        db.writeAll();
+    }
+}
@@ -0,0 +1,85 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Every query rule, with and without the query index
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    @Param({"1000", "100000"})
+    public int keyCount;
+
+    @Param({"SW=key-12", "EW=99", "CT=y-45", "EQ=key-500"})
+    public String rule;
+
+    @Param({"false", "true"})
+    public boolean queryIndex;
+
+    @Param({BenchmarkData.CIPHER_YA, BenchmarkData.CIPHER_AES})
+    public String cipher;
+
+    private File dir;
+    private SuperMiniDB db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkData.tempDir();
+        db = new SuperMiniDB(BenchmarkData.DB_NAME, dir,
+                BenchmarkData.options(cipher, SuperMiniDB.STORAGE_ENGINE_LEGACY)
+                        .setQueryIndex(queryIndex));
+        BenchmarkData.fill(db, keyCount, 32, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public Map<String, String> query() {
+        return db.query(rule);
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, String>> queryStreamFirst10() {
+        List<Map.Entry<String, String>> out = db.queryStream(rule).limit(10).collect(Collectors.toList());
+        for (Map.Entry<String, String> entry : out) {
+            entry.getValue();
+        }
+        return out;
+    }
+}
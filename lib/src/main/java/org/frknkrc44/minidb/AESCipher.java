@@ -1,8 +1,11 @@
 package org.frknkrc44.minidb;
 
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKeyFactory;
@@ -10,13 +13,29 @@ import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/*
+ * Record format:
+ *   byte  FORMAT_VERSION
+ *   12 bytes random nonce
+ *   ciphertext + 128 bit GCM tag
+ */
 final class AESCipher extends BaseCipher {
+    private static final byte FORMAT_VERSION = 1;
+    private static final int GCM_IV_LENGTH = 12;
+    private static final ConcurrentHashMap<String, SecretKeySpec> KEY_CACHE = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
     private final int AES_KEY_SIZE = 256;
     private final int GCM_TAG_LENGTH = AES_KEY_SIZE / 2;
-    private final byte[] iv;
     private final SecretKeySpec secretKey;
 
-    public AESCipher(byte[] key) throws InvalidKeySpecException, NoSuchAlgorithmException {
+    public AESCipher(byte[] key) throws GeneralSecurityException {
         super(key);
 
         if (key.length != AES_KEY_SIZE) {
@@ -39,16 +58,29 @@ final class AESCipher extends BaseCipher {
             key = nKey;
         }
 
-        SecureRandom secureRandom = new SecureRandom();
-        iv = new byte[12 /* GCM_IV_LENGTH */];
-        secureRandom.nextBytes(iv);
+        // PBKDF2 is slow on purpose, derive each key once per process
+        String cacheKey = new String(key, StandardCharsets.ISO_8859_1);
+        SecretKeySpec cached = KEY_CACHE.get(cacheKey);
+        if (cached == null) {
+            cached = deriveKey(key);
+            KEY_CACHE.putIfAbsent(cacheKey, cached);
+        }
+
+        secretKey = cached;
+        // Fail here if AES/GCM is missing, so the DB can fall back to YACipher
+        CIPHERS.get();
+    }
+
+    private SecretKeySpec deriveKey(byte[] key) throws GeneralSecurityException {
+        // The salt must be stable, otherwise the values can't be read after reopening
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update("SuperMiniDB".getBytes(StandardCharsets.ISO_8859_1));
+        byte[] salt = digest.digest(key);
 
         PBEKeySpec pbeKeySpec = new PBEKeySpec(
-                toCharArray(key), iv, 65536, 256);
+                toCharArray(key), Arrays.copyOf(salt, 16), 65536, 256);
         SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        key = f.generateSecret(pbeKeySpec).getEncoded();
-
-        secretKey = new SecretKeySpec(key, "AES");
+        return new SecretKeySpec(f.generateSecret(pbeKeySpec).getEncoded(), "AES");
     }
 
     private char[] toCharArray(byte[] array) {
@@ -60,14 +92,19 @@ final class AESCipher extends BaseCipher {
     }
 
     @Override
-    public byte[] encode(byte[] input) {
+    public byte[] encode(byte[] input, int offset, int length) {
         try {
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            byte[] out = new byte[1 + GCM_IV_LENGTH + length + GCM_TAG_LENGTH / 8];
+            out[0] = FORMAT_VERSION;
 
-            GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            RANDOMS.get().nextBytes(iv);
+            System.arraycopy(iv, 0, out, 1, GCM_IV_LENGTH);
 
-            return Base64Provider.encode(cipher.doFinal(input));
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.doFinal(input, offset, length, out, 1 + GCM_IV_LENGTH);
+            return out;
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
@@ -75,15 +112,16 @@ final class AESCipher extends BaseCipher {
 
     @Override
     public byte[] decode(byte[] input) {
-        try {
-            input = Base64Provider.decode(input);
-
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-
-            GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
+        if (input.length < 1 + GCM_IV_LENGTH || input[0] != FORMAT_VERSION) {
+            // The old Base64 format used a random IV and salt per instance,
+            // those values were lost when their instance was closed
+            throw new RuntimeException("unsupported AES value format");
+        }
 
-            return cipher.doFinal(input);
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, input, 1, GCM_IV_LENGTH));
+            return cipher.doFinal(input, 1 + GCM_IV_LENGTH, input.length - 1 - GCM_IV_LENGTH);
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,47 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default executor of the async API, shared by every database.
+ * This is a bounded pool of daemon threads, callers beyond its size
+ * wait in its queue. The Java 21 build (META-INF/versions/21) replaces
+ * this class with one that runs every task on a virtual thread.
+ */
+final class AsyncExecutors {
+    private AsyncExecutors() {}
+
+    static Executor shared() {
+        return Holder.SHARED;
+    }
+
+    private static final class Holder {
+        static final Executor SHARED = create();
+
+        private static Executor create() {
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "SuperMiniDB-async-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+}
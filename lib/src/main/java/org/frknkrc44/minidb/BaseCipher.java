@@ -5,13 +5,15 @@ abstract class BaseCipher {
     public BaseCipher(byte[] key) {
         mKey = key;
     }
-    public abstract byte[] encode(byte[] input);
+
+    /**
+     * Encode a part of the input, the input itself is not modified
+     */
+    public abstract byte[] encode(byte[] input, int offset, int length);
+
     public abstract byte[] decode(byte[] input);
-    public String encodeStr(String input) {
-        return new String(encode(input.getBytes()));
-    }
 
-    public String decodeStr(String input) {
-        return new String(decode(input.getBytes()));
+    public byte[] encode(byte[] input) {
+        return encode(input, 0, input.length);
     }
 }
@@ -0,0 +1,62 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+/**
+ * Point-in-time counters of a cache
+ */
+public final class CacheStats {
+    private final long hitCount, missCount, evictionCount, size, capacity;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, long size, long capacity) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+        this.capacity = capacity;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return Estimated bytes in the cache
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Byte budget of the cache
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount
+                + ", size=" + size + ", capacity=" + capacity + "}";
+    }
+}
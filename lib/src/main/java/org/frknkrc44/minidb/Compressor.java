@@ -0,0 +1,240 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compressed plain value, before the cipher
+ *
+ *   MARKER, TAG_COMPRESSED
+ *   byte    codec
+ *   varint  plain length
+ *   payload the compressed plain value, which is tagged or not as usual
+ *
+ * CODEC_DEFLATE_DICT values need the dictionary they were written with.
+ */
+final class Compressor {
+    static final byte CODEC_LZ = 1,
+            CODEC_DEFLATE = 2,
+            CODEC_DEFLATE_DICT = 3;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    private static final int HEADER = 2 + 1 + 5;
+    private static final int GRAM = 8, SEGMENT = 32;
+
+    private final String policy;
+    private final int threshold;
+    private final byte[] dictionary;
+
+    /**
+     * @param policy     One of the SuperMiniDB.COMPRESSION_* constants
+     * @param threshold  Smaller values are never compressed
+     * @param dictionary Preset Deflate dictionary, or null
+     */
+    Compressor(String policy, int threshold, byte[] dictionary) {
+        this.policy = policy;
+        this.threshold = threshold;
+        this.dictionary = dictionary;
+    }
+
+    static boolean isCompressed(byte[] value) {
+        return value.length >= 3 && value[0] == ValueCodec.MARKER && value[1] == ValueCodec.TAG_COMPRESSED;
+    }
+
+    /**
+     * @return A value of this length is stored as is
+     */
+    boolean skips(int length) {
+        return length < threshold || SuperMiniDB.COMPRESSION_NONE.equals(policy);
+    }
+
+    /**
+     * @return Compressed value, or the input if compressing doesn't pay off
+     */
+    byte[] compress(byte[] plain) {
+        if (skips(plain.length)) {
+            return plain;
+        }
+
+        byte[] out;
+        switch (policy) {
+            case SuperMiniDB.COMPRESSION_LZ:
+                out = lz(plain);
+                break;
+            case SuperMiniDB.COMPRESSION_DEFLATE:
+                out = deflate(plain);
+                break;
+            default:
+                // The fast codec first, Deflate only if it did poorly
+                out = lz(plain);
+                if (out.length > plain.length - plain.length / 4) {
+                    byte[] deflated = deflate(plain);
+                    if (deflated.length < out.length) out = deflated;
+                }
+                break;
+        }
+
+        // Keep the plain value unless at least 1/16 is saved
+        return out.length <= plain.length - plain.length / 16 ? out : plain;
+    }
+
+    byte[] decompress(byte[] value) {
+        int pos = 3;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= value.length || shift > 28) {
+                throw new RuntimeException("corrupted compressed value");
+            }
+
+            byte b = value[pos++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+
+        byte[] out = new byte[length];
+        switch (value[2]) {
+            case CODEC_LZ:
+                LZCodec.decompress(value, pos, out);
+                return out;
+            case CODEC_DEFLATE:
+            case CODEC_DEFLATE_DICT:
+                inflate(value, pos, out, value[2] == CODEC_DEFLATE_DICT);
+                return out;
+            default:
+                throw new RuntimeException("unknown compression codec: " + value[2]);
+        }
+    }
+
+    private byte[] lz(byte[] plain) {
+        byte[] out = new byte[HEADER + LZCodec.maxCompressedLength(plain.length)];
+        int pos = header(out, CODEC_LZ, plain.length);
+        return Arrays.copyOf(out, pos + LZCodec.compress(plain, out, pos));
+    }
+
+    private byte[] deflate(byte[] plain) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+
+        deflater.setInput(plain);
+        deflater.finish();
+
+        // Give up once the output is as big as the input
+        byte[] out = new byte[HEADER + plain.length];
+        int pos = header(out, dictionary != null ? CODEC_DEFLATE_DICT : CODEC_DEFLATE, plain.length);
+        while (!deflater.finished() && pos < out.length) {
+            pos += deflater.deflate(out, pos, out.length - pos);
+        }
+
+        return deflater.finished() ? Arrays.copyOf(out, pos) : plain;
+    }
+
+    private void inflate(byte[] value, int pos, byte[] out, boolean needsDictionary) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(value, pos, value.length - pos);
+
+        try {
+            int done = 0;
+            while (done < out.length) {
+                int n = inflater.inflate(out, done, out.length - done);
+                if (n == 0 && inflater.needsDictionary()) {
+                    if (!needsDictionary || dictionary == null) {
+                        throw new RuntimeException("the value needs the compression dictionary");
+                    }
+
+                    inflater.setDictionary(dictionary);
+                } else if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new RuntimeException("corrupted compressed value");
+                }
+
+                done += n;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            // A wrong dictionary fails here
+            throw new RuntimeException("corrupted compressed value", e);
+        }
+    }
+
+    private static int header(byte[] out, byte codec, int length) {
+        out[0] = ValueCodec.MARKER;
+        out[1] = ValueCodec.TAG_COMPRESSED;
+        out[2] = codec;
+        int pos = 3;
+        while ((length & ~0x7F) != 0) {
+            out[pos++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out[pos++] = (byte) length;
+        return pos;
+    }
+
+    /**
+     * Build a preset dictionary from the segments around the byte
+     * sequences which most samples share. The most common segments go
+     * last, Deflate reaches the end of the dictionary with the shortest
+     * distances.
+     */
+    static byte[] train(List<byte[]> samples, int size) {
+        Map<String, Integer> frequency = new HashMap<>();
+        Map<String, byte[]> segments = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i + GRAM <= sample.length; i++) {
+                String gram = new String(sample, i, GRAM, StandardCharsets.ISO_8859_1);
+                if (seen.add(gram)) {
+                    frequency.merge(gram, 1, Integer::sum);
+                    segments.putIfAbsent(gram, Arrays.copyOfRange(sample, i, Math.min(sample.length, i + SEGMENT)));
+                }
+            }
+        }
+
+        List<Map.Entry<String, Integer>> grams = new ArrayList<>(frequency.entrySet());
+        grams.removeIf(entry -> entry.getValue() < 2);
+        grams.sort((a, b) -> b.getValue() - a.getValue());
+
+        List<byte[]> picked = new ArrayList<>();
+        StringBuilder dictionary = new StringBuilder();
+        int length = 0;
+        for (Map.Entry<String, Integer> entry : grams) {
+            if (length >= size) break;
+            if (dictionary.indexOf(entry.getKey()) >= 0) continue;
+
+            byte[] segment = segments.get(entry.getKey());
+            segment = Arrays.copyOf(segment, Math.min(segment.length, size - length));
+            picked.add(segment);
+            dictionary.append(new String(segment, StandardCharsets.ISO_8859_1));
+            length += segment.length;
+        }
+
+        byte[] out = new byte[length];
+        int pos = length;
+        for (byte[] segment : picked) {
+            pos -= segment.length;
+            System.arraycopy(segment, 0, out, pos, segment.length);
+        }
+
+        return out;
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+/**
+ * CRC-32C (Castagnoli), slicing by 8 bytes.
+ * java.util.zip.CRC32C needs Java 9.
+ */
+final class Crc32c {
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLY : 0);
+            }
+            TABLES[0][i] = crc;
+        }
+
+        for (int k = 1; k < 8; k++) {
+            for (int i = 0; i < 256; i++) {
+                int prev = TABLES[k - 1][i];
+                TABLES[k][i] = (prev >>> 8) ^ TABLES[0][prev & 0xFF];
+            }
+        }
+    }
+
+    private Crc32c() {}
+
+    static int compute(byte[] b, int offset, int length) {
+        return update(0, b, offset, length);
+    }
+
+    /**
+     * @param previous Checksum of the bytes before these
+     * @return Checksum of all of the bytes
+     */
+    static int update(int previous, byte[] b, int offset, int length) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3],
+                t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int crc = ~previous;
+
+        while (length >= 8) {
+            int lo = crc ^ ((b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8
+                    | (b[offset + 2] & 0xFF) << 16 | (b[offset + 3] & 0xFF) << 24);
+            int hi = (b[offset + 4] & 0xFF) | (b[offset + 5] & 0xFF) << 8
+                    | (b[offset + 6] & 0xFF) << 16 | (b[offset + 7] & 0xFF) << 24;
+            crc = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+            offset += 8;
+            length -= 8;
+        }
+
+        while (length-- > 0) {
+            crc = (crc >>> 8) ^ t0[(crc ^ b[offset++]) & 0xFF];
+        }
+
+        return ~crc;
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Platform MBean server registration of a database. JMX is only
+ * touched from this class, so platforms without it can still load the DB.
+ */
+final class DBMXBean implements SuperMiniDBMXBean {
+    private final SuperMiniDB db;
+    private final Metrics metrics;
+    private final ObjectName name;
+
+    private DBMXBean(SuperMiniDB db, Metrics metrics, ObjectName name) {
+        this.db = db;
+        this.metrics = metrics;
+        this.name = name;
+    }
+
+    static DBMXBean register(SuperMiniDB db, String dbName, Metrics metrics) {
+        try {
+            ObjectName name = new ObjectName("org.frknkrc44.minidb:type=SuperMiniDB,name="
+                    + ObjectName.quote(dbName));
+            DBMXBean bean = new DBMXBean(db, metrics, name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            return bean;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception ignored) {}
+    }
+
+    @Override
+    public int getKeyCount() {
+        return db.getLength();
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return db.getMemoryUsage();
+    }
+
+    @Override
+    public long getDiskUsage() {
+        return db.getDiskUsage();
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return perOperation(OperationMetrics::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getOperationMeanNanos() {
+        return perOperation(OperationMetrics::getMeanNanos);
+    }
+
+    @Override
+    public Map<String, Long> getOperationP99Nanos() {
+        return perOperation((m, operation) -> m.getPercentileNanos(operation, 99));
+    }
+
+    private interface Reader {
+        long read(OperationMetrics metrics, int operation);
+    }
+
+    private Map<String, Long> perOperation(Reader reader) {
+        if (!(metrics instanceof OperationMetrics)) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (int i = 0; i < Metrics.NAMES.size(); i++) {
+            out.put(Metrics.NAMES.get(i), reader.read((OperationMetrics) metrics, i));
+        }
+
+        return out;
+    }
+}
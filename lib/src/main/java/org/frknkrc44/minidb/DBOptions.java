@@ -0,0 +1,283 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options used while opening a database
+ */
+public final class DBOptions {
+    boolean notRead = false;
+    boolean useAes = false;
+    LogProvider logProvider = null;
+    String storageEngine = SuperMiniDB.STORAGE_ENGINE_LEGACY;
+    boolean memoryMapped = false;
+    boolean writeBehind = false;
+    int flushBatchSize = 256;
+    long flushDelayMillis = 20;
+    boolean queryIndex = false;
+    boolean lazyLoad = false;
+    long valueCacheSize = 16L * 1024 * 1024;
+    long decodedCacheSize = 0;
+    String syncPolicy = SuperMiniDB.SYNC_COMMIT;
+    ForkJoinPool bulkPool = null;
+    Executor listenerExecutor = null;
+    Executor asyncExecutor = null;
+    String compression = SuperMiniDB.COMPRESSION_NONE;
+    int compressionThreshold = 256;
+    byte[] compressionDictionary = null;
+    boolean offHeap = false;
+    Metrics metrics = Metrics.NONE;
+    boolean registerMBean = false;
+
+    /**
+     * @param notRead Don't read the database content, just initialize it.
+     *                You will need to read the key contents manually.
+     */
+    public DBOptions setNotRead(boolean notRead) {
+        this.notRead = notRead;
+        return this;
+    }
+
+    /**
+     * @param useAes Use AESCipher instead of YACipher (more secure but slow)
+     */
+    public DBOptions setUseAes(boolean useAes) {
+        this.useAes = useAes;
+        return this;
+    }
+
+    /**
+     * @param provider Log provider, null for the default one
+     */
+    public DBOptions setLogProvider(LogProvider provider) {
+        this.logProvider = provider;
+        return this;
+    }
+
+    /**
+     * @param storageEngine One of the SuperMiniDB.STORAGE_ENGINE_* constants
+     */
+    public DBOptions setStorageEngine(String storageEngine) {
+        this.storageEngine = storageEngine;
+        return this;
+    }
+
+    /**
+     * Map the data files into memory and only build the key index while
+     * loading, values are copied to the heap when they are read.
+     * Only used by STORAGE_ENGINE_LOG.
+     * @param memoryMapped Enable memory-mapped reads
+     */
+    public DBOptions setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * Persist permanent writes and removals on a background flusher
+     * in groups, instead of writing every key on the calling thread.
+     * Use SuperMiniDB.flush() to wait for them. The flusher is a daemon
+     * thread, the writes which are not flushed yet are lost when the JVM
+     * exits without SuperMiniDB.flush() or SuperMiniDB.close().
+     * A group is synced once by STORAGE_ENGINE_LOG. STORAGE_ENGINE_LEGACY
+     * still syncs the file of every key, since a file which is moved over
+     * a key must be on the disk first, a group only saves folder syncs.
+     * @param writeBehind Enable the background flusher, disabled by default
+     */
+    public DBOptions setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+        return this;
+    }
+
+    /**
+     * @param flushBatchSize Commit a group as soon as it has this many keys
+     */
+    public DBOptions setFlushBatchSize(int flushBatchSize) {
+        if (flushBatchSize < 1) {
+            throw new RuntimeException("flushBatchSize must be positive");
+        }
+
+        this.flushBatchSize = flushBatchSize;
+        return this;
+    }
+
+    /**
+     * @param flushDelayMillis Longest time a dirty key waits for its group
+     */
+    public DBOptions setFlushDelayMillis(long flushDelayMillis) {
+        if (flushDelayMillis < 0) {
+            throw new RuntimeException("flushDelayMillis must not be negative");
+        }
+
+        this.flushDelayMillis = flushDelayMillis;
+        return this;
+    }
+
+    /**
+     * Keep a suffix and trigram index of the keys, so EW and CT
+     * queries don't scan every key. It costs memory per key character.
+     * @param queryIndex Enable the query index
+     */
+    public DBOptions setQueryIndex(boolean queryIndex) {
+        this.queryIndex = queryIndex;
+        return this;
+    }
+
+    /**
+     * Only load the keys while opening, values are read from the storage
+     * on first access and kept in a bounded cache. Permanent writes move
+     * to the cache once they are persisted, other writes stay in memory.
+     * @param lazyLoad Enable lazy loading
+     */
+    public DBOptions setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+        return this;
+    }
+
+    /**
+     * @param valueCacheSize Byte budget of the lazy loading value cache
+     */
+    public DBOptions setValueCacheSize(long valueCacheSize) {
+        if (valueCacheSize < 0) {
+            throw new RuntimeException("valueCacheSize must not be negative");
+        }
+
+        this.valueCacheSize = valueCacheSize;
+        return this;
+    }
+
+    /**
+     * Keep decrypted values of hot keys, so reading them again skips the
+     * cipher. It is not used when the DB has no cipher.
+     * @param decodedCacheSize Byte budget of the cache, 0 disables it
+     */
+    public DBOptions setDecodedCacheSize(long decodedCacheSize) {
+        if (decodedCacheSize < 0) {
+            throw new RuntimeException("decodedCacheSize must not be negative");
+        }
+
+        this.decodedCacheSize = decodedCacheSize;
+        return this;
+    }
+
+    /**
+     * @param syncPolicy One of the SuperMiniDB.SYNC_* constants
+     */
+    public DBOptions setSyncPolicy(String syncPolicy) {
+        if (!SuperMiniDB.SYNC_NEVER.equals(syncPolicy)
+                && !SuperMiniDB.SYNC_COMMIT.equals(syncPolicy)
+                && !SuperMiniDB.SYNC_ALWAYS.equals(syncPolicy)) {
+            throw new RuntimeException("invalid sync policy: " + syncPolicy);
+        }
+
+        this.syncPolicy = syncPolicy;
+        return this;
+    }
+
+    /**
+     * Loading and writing the whole database (readAll, writeAll and
+     * exportToDir) is split over the threads of this pool.
+     * @param bulkPool The pool, null for the common pool
+     */
+    public DBOptions setBulkPool(ForkJoinPool bulkPool) {
+        this.bulkPool = bulkPool;
+        return this;
+    }
+
+    /**
+     * @param listenerExecutor Executor which delivers the key events,
+     *                         null for a thread of the database
+     */
+    public DBOptions setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+        return this;
+    }
+
+    /**
+     * @param metrics Receives operation timings, Metrics.NONE (the default)
+     *                disables them, see OperationMetrics
+     */
+    public DBOptions setMetrics(Metrics metrics) {
+        this.metrics = metrics != null ? metrics : Metrics.NONE;
+        return this;
+    }
+
+    /**
+     * Register a SuperMiniDBMXBean on the platform MBean server while
+     * the database is open. Database names must be unique per process.
+     * @param registerMBean Enable the MBean
+     */
+    public DBOptions setRegisterMBean(boolean registerMBean) {
+        this.registerMBean = registerMBean;
+        return this;
+    }
+
+    /**
+     * @param asyncExecutor Executor of the async API, null for the shared
+     *                      default (virtual threads on Java 21 and newer)
+     */
+    public DBOptions setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+        return this;
+    }
+
+    /**
+     * Compress values before they are encrypted. Compressed values are
+     * read back with any setting.
+     * @param compression One of the SuperMiniDB.COMPRESSION_* constants
+     */
+    public DBOptions setCompression(String compression) {
+        if (!SuperMiniDB.COMPRESSION_NONE.equals(compression)
+                && !SuperMiniDB.COMPRESSION_LZ.equals(compression)
+                && !SuperMiniDB.COMPRESSION_DEFLATE.equals(compression)
+                && !SuperMiniDB.COMPRESSION_AUTO.equals(compression)) {
+            throw new RuntimeException("invalid compression: " + compression);
+        }
+
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param compressionThreshold Values smaller than this (in bytes) are not compressed
+     */
+    public DBOptions setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new RuntimeException("compressionThreshold must not be negative");
+        }
+
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    /**
+     * Preset Deflate dictionary, it helps small values which repeat each
+     * other. See SuperMiniDB.trainCompressionDictionary
+     * @param compressionDictionary The dictionary, null for none
+     */
+    public DBOptions setCompressionDictionary(byte[] compressionDictionary) {
+        this.compressionDictionary = compressionDictionary;
+        return this;
+    }
+
+    /**
+     * Keep the encoded values in direct memory slabs, so large tables
+     * give the garbage collector less to trace. Reads copy the value
+     * to the heap. Values bigger than a slab (4 MB) stay on the heap.
+     * @param offHeap Enable off-heap values
+     */
+    public DBOptions setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+}
@@ -0,0 +1,151 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded cache of decrypted values. An entry remembers the table
+ * holder it was decoded from and only matches that holder, so a value
+ * which was replaced meanwhile is never returned. Eviction is CLOCK,
+ * like the ValueCache.
+ */
+final class DecodedCache {
+    // Rough heap cost of an entry, its map node and its ring slot
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long capacity;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry> ring = new ArrayDeque<>();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+    private long size = 0;
+    private int dead = 0;
+
+    DecodedCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return Plain value of the holder, callers must not modify it,
+     *         or null if it is not cached
+     */
+    byte[] get(String key, ValueHolder holder) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.holder == holder) {
+            entry.referenced = true;
+            hits.increment();
+            return entry.plain;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param plain Plain value, the cache owns it from now on
+     */
+    synchronized void put(String key, ValueHolder holder, byte[] plain) {
+        long cost = cost(plain);
+        if (cost > capacity) {
+            return;
+        }
+
+        Entry entry = new Entry(key, holder, plain);
+        drop(entries.put(key, entry));
+        ring.addLast(entry);
+        size += cost;
+
+        while (size > capacity) {
+            Entry victim = ring.pollFirst();
+            if (victim.removed) {
+                dead--;
+            } else if (victim.referenced) {
+                victim.referenced = false;
+                ring.addLast(victim);
+            } else {
+                entries.remove(victim.key, victim);
+                victim.removed = true;
+                size -= cost(victim.plain);
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * The holder of a key got replaced by another one with the same value
+     */
+    void moved(String key, ValueHolder from, ValueHolder to) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.holder == from) {
+            entry.holder = to;
+        }
+    }
+
+    void invalidate(String key) {
+        if (entries.containsKey(key)) {
+            synchronized (this) {
+                drop(entries.remove(key));
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        ring.clear();
+        size = 0;
+        dead = 0;
+    }
+
+    CacheStats stats() {
+        long current;
+        synchronized (this) {
+            current = size;
+        }
+
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), current, capacity);
+    }
+
+    private void drop(Entry entry) {
+        if (entry == null || entry.removed) {
+            return;
+        }
+
+        entry.removed = true;
+        size -= cost(entry.plain);
+        dead++;
+
+        // The slot stays in the ring until it is passed over, don't let them pile up
+        if (dead > ring.size() / 2) {
+            ring.removeIf(e -> e.removed);
+            dead = 0;
+        }
+    }
+
+    private static long cost(byte[] plain) {
+        return plain.length + ENTRY_OVERHEAD;
+    }
+
+    private static final class Entry {
+        final String key;
+        final byte[] plain;
+        volatile ValueHolder holder;
+        volatile boolean referenced = false;
+        // Guarded by the cache
+        boolean removed = false;
+
+        Entry(String key, ValueHolder holder, byte[] plain) {
+            this.key = key;
+            this.holder = holder;
+            this.plain = plain;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Stored value of a key with a time to live, outside the cipher
+ *
+ *   MARKER, TAG_TTL
+ *   long    expiry time, epoch milliseconds, big endian
+ *   the encoded value
+ *
+ * Cipher output never starts with MARKER and an unencrypted value
+ * never has TAG_TTL, so values without it are told apart.
+ */
+final class Expiry {
+    static final int HEADER = 2 + 8;
+
+    private Expiry() {}
+
+    static byte[] wrap(byte[] encoded, long expiresAt) {
+        byte[] out = new byte[HEADER + encoded.length];
+        out[0] = ValueCodec.MARKER;
+        out[1] = ValueCodec.TAG_TTL;
+        for (int i = HEADER - 1; i >= 2; i--) {
+            out[i] = (byte) expiresAt;
+            expiresAt >>>= 8;
+        }
+        System.arraycopy(encoded, 0, out, HEADER, encoded.length);
+        return out;
+    }
+
+    static boolean hasExpiry(byte[] value) {
+        return value.length >= HEADER && value[0] == ValueCodec.MARKER && value[1] == ValueCodec.TAG_TTL;
+    }
+
+    /**
+     * @return Expiry time of the stored value, or 0 if it has none
+     */
+    static long expiresAt(byte[] value) {
+        return hasExpiry(value) ? ByteBuffer.wrap(value, 2, 8).getLong() : 0;
+    }
+
+    static long expiresAt(ByteBuffer value) {
+        int pos = value.position();
+        if (value.remaining() < HEADER || value.get(pos) != ValueCodec.MARKER
+                || value.get(pos + 1) != ValueCodec.TAG_TTL) {
+            return 0;
+        }
+
+        return value.getLong(pos + 2);
+    }
+
+    /**
+     * @return The encoded value without the expiry header
+     */
+    static byte[] unwrap(byte[] value) {
+        return hasExpiry(value) ? Arrays.copyOfRange(value, HEADER, value.length) : value;
+    }
+
+    static boolean isExpired(long expiresAt, long now) {
+        return expiresAt != 0 && expiresAt <= now;
+    }
+}
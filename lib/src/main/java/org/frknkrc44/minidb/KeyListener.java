@@ -0,0 +1,21 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+/**
+ * Receives changes of watched keys, see SuperMiniDB.watchKey and watchPrefix
+ */
+public interface KeyListener {
+    /**
+     * @param event One of the SuperMiniDB.EVENT_* constants
+     * @param key   Changed key, null if the whole database is reloaded
+     */
+    void onKeyEvent(String event, String key);
+}
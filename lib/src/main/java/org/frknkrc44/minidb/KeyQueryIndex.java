@@ -0,0 +1,121 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary key index for the EW and CT query rules.
+ * Suffixes are prefix searches over the reversed keys, substrings
+ * are looked up in trigram posting lists and then verified.
+ */
+final class KeyQueryIndex {
+    private static final int GRAM = 3;
+
+    private final ConcurrentSkipListSet<String> reversedKeys = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<Long, Set<String>> postings = new ConcurrentHashMap<>();
+
+    KeyQueryIndex(Collection<String> keys) {
+        for (String key : keys) {
+            add(key);
+        }
+    }
+
+    void add(String key) {
+        reversedKeys.add(reverse(key));
+
+        for (int i = 0; i + GRAM <= key.length(); i++) {
+            postings.compute(trigram(key, i), (gram, set) -> {
+                if (set == null) {
+                    set = ConcurrentHashMap.newKeySet();
+                }
+
+                set.add(key);
+                return set;
+            });
+        }
+    }
+
+    void remove(String key) {
+        reversedKeys.remove(reverse(key));
+
+        for (int i = 0; i + GRAM <= key.length(); i++) {
+            postings.computeIfPresent(trigram(key, i), (gram, set) -> {
+                set.remove(key);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    void clear() {
+        reversedKeys.clear();
+        postings.clear();
+    }
+
+    List<String> endsWith(String suffix) {
+        List<String> out = new ArrayList<>();
+        String reversed = reverse(suffix);
+
+        for (String key : reversedKeys.tailSet(reversed, true)) {
+            if (!key.startsWith(reversed)) {
+                break;
+            }
+
+            out.add(reverse(key));
+        }
+
+        return out;
+    }
+
+    /**
+     * @return Keys which contain the part, or null if the part is too
+     *         short for the index and the caller has to scan the keys
+     */
+    List<String> contains(String part) {
+        if (part.length() < GRAM) {
+            return null;
+        }
+
+        Set<String> smallest = null;
+        for (int i = 0; i + GRAM <= part.length(); i++) {
+            Set<String> set = postings.get(trigram(part, i));
+            if (set == null) {
+                return Collections.emptyList();
+            }
+
+            if (smallest == null || set.size() < smallest.size()) {
+                smallest = set;
+            }
+        }
+
+        List<String> out = new ArrayList<>();
+        for (String key : smallest) {
+            if (key.contains(part)) {
+                out.add(key);
+            }
+        }
+
+        return out;
+    }
+
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    private static String reverse(String s) {
+        return new StringBuilder(s).reverse().toString();
+    }
+}
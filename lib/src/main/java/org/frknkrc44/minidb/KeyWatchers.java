@@ -0,0 +1,216 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Key and prefix listeners with coalesced delivery.
+ * Events wait in a per-key map until they are delivered, a newer event
+ * of a key replaces the waiting one. One delivery runs at a time, so
+ * listeners see the events of a key in order on any executor.
+ */
+final class KeyWatchers {
+    private final String name;
+    private final LogProvider logProvider;
+    private final ConcurrentHashMap<String, List<KeyListener>> keys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<KeyListener>> prefixes = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Integer> prefixLengths = new ConcurrentSkipListSet<>();
+    private volatile boolean active = false;
+    private Executor executor;
+    private ExecutorService ownExecutor = null;
+
+    // Guarded by this
+    private LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+    private boolean reloadPending = false, scheduled = false;
+
+    /**
+     * @param executor Delivery executor, null for a thread of the DB
+     */
+    KeyWatchers(String name, Executor executor, LogProvider logProvider) {
+        this.name = name;
+        this.executor = executor;
+        this.logProvider = logProvider;
+    }
+
+    synchronized void watchKey(String key, KeyListener listener) {
+        keys.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(listener);
+        active = true;
+    }
+
+    synchronized void watchPrefix(String prefix, KeyListener listener) {
+        prefixes.computeIfAbsent(prefix, k -> new CopyOnWriteArrayList<>()).add(listener);
+        prefixLengths.add(prefix.length());
+        active = true;
+    }
+
+    synchronized void unwatch(KeyListener listener) {
+        keys.values().removeIf(list -> list.removeAll(Collections.singleton(listener)) && list.isEmpty());
+        prefixes.values().removeIf(list -> list.removeAll(Collections.singleton(listener)) && list.isEmpty());
+        prefixLengths.clear();
+        for (String prefix : prefixes.keySet()) {
+            prefixLengths.add(prefix.length());
+        }
+
+        active = !keys.isEmpty() || !prefixes.isEmpty();
+    }
+
+    /**
+     * Queue an event of a key, it is dropped if no one watches the key
+     */
+    void emit(String event, String key) {
+        if (!active || !isWatched(key)) {
+            return;
+        }
+
+        synchronized (this) {
+            // Move the key behind the events queued after its last one
+            pending.remove(key);
+            pending.put(key, event);
+            schedule();
+        }
+    }
+
+    /**
+     * Queue a reload of the whole database, it replaces the waiting key events
+     */
+    void reload() {
+        if (!active) {
+            return;
+        }
+
+        synchronized (this) {
+            pending.clear();
+            reloadPending = true;
+            schedule();
+        }
+    }
+
+    synchronized void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private boolean isWatched(String key) {
+        if (keys.containsKey(key)) {
+            return true;
+        }
+
+        for (int length : prefixLengths) {
+            if (length > key.length()) {
+                break;
+            }
+
+            if (prefixes.containsKey(key.substring(0, length))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+
+        if (executor == null) {
+            ownExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SuperMiniDB-events-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor = ownExecutor;
+        }
+
+        scheduled = true;
+        try {
+            executor.execute(this::deliver);
+        } catch (RuntimeException e) {
+            scheduled = false;
+            logProvider.onLog("Delivering key events failed: " + e);
+        }
+    }
+
+    private void deliver() {
+        while (true) {
+            Map<String, String> events;
+            boolean reload;
+            synchronized (this) {
+                if (pending.isEmpty() && !reloadPending) {
+                    scheduled = false;
+                    return;
+                }
+
+                events = pending;
+                reload = reloadPending;
+                pending = new LinkedHashMap<>();
+                reloadPending = false;
+            }
+
+            if (reload) {
+                Set<KeyListener> all = new LinkedHashSet<>();
+                keys.values().forEach(all::addAll);
+                prefixes.values().forEach(all::addAll);
+                for (KeyListener listener : all) {
+                    notify(listener, SuperMiniDB.EVENT_RELOAD, null);
+                }
+            }
+
+            for (Map.Entry<String, String> entry : events.entrySet()) {
+                for (KeyListener listener : listenersOf(entry.getKey())) {
+                    notify(listener, entry.getValue(), entry.getKey());
+                }
+            }
+        }
+    }
+
+    private Set<KeyListener> listenersOf(String key) {
+        // A listener of the key and one of its prefixes gets the event once
+        Set<KeyListener> out = new LinkedHashSet<>();
+        List<KeyListener> exact = keys.get(key);
+        if (exact != null) {
+            out.addAll(exact);
+        }
+
+        for (int length : prefixLengths) {
+            if (length > key.length()) {
+                break;
+            }
+
+            List<KeyListener> list = prefixes.get(key.substring(0, length));
+            if (list != null) {
+                out.addAll(list);
+            }
+        }
+
+        return out;
+    }
+
+    private void notify(KeyListener listener, String event, String key) {
+        try {
+            listener.onKeyEvent(event, key);
+        } catch (Throwable t) {
+            logProvider.onLog("Key listener failed on " + event + " " + key + ": " + t);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.Arrays;
+
+/*
+ * LZ4 style block codec, fast but without entropy coding
+ *
+ * A block is a list of sequences:
+ *   token        high nibble literal length, low nibble match length - 4
+ *   [extension]  255 bytes and a last byte under 255, added to a nibble of 15
+ *   literals
+ *   offset       2 bytes, little endian, back from the current position
+ *   [extension]  of the match length
+ * The last sequence has only literals, the decoder stops when the
+ * output is full, its length is stored outside the block.
+ */
+final class LZCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+    private static final ThreadLocal<int[]> TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    private LZCodec() {}
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * @return Length of the block written to out at offset
+     */
+    static int compress(byte[] in, byte[] out, int offset) {
+        int[] table = TABLES.get();
+        Arrays.fill(table, -1);
+
+        int op = offset, anchor = 0, i = 0;
+        int matchLimit = in.length - LAST_LITERALS;
+        while (i + MIN_MATCH <= matchLimit) {
+            int seq = readInt(in, i);
+            int h = (seq * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = i;
+
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(in, ref) != seq) {
+                i++;
+                continue;
+            }
+
+            int length = MIN_MATCH;
+            while (i + length < matchLimit && in[ref + length] == in[i + length]) {
+                length++;
+            }
+
+            op = writeSequence(in, anchor, i - anchor, out, op, length - MIN_MATCH);
+            out[op++] = (byte) (i - ref);
+            out[op++] = (byte) ((i - ref) >>> 8);
+            op = writeLength(out, op, length - MIN_MATCH);
+            i += length;
+            anchor = i;
+        }
+
+        op = writeSequence(in, anchor, in.length - anchor, out, op, 0);
+        return op - offset;
+    }
+
+    /**
+     * Decode a block into out, which has the exact original length
+     */
+    static void decompress(byte[] in, int ip, byte[] out) {
+        try {
+            int op = 0;
+            while (true) {
+                int token = in[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+
+                System.arraycopy(in, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (op == out.length) {
+                    return;
+                }
+
+                int distance = (in[ip++] & 0xFF) | ((in[ip++] & 0xFF) << 8);
+                if (distance == 0 || distance > op) {
+                    throw new RuntimeException("corrupted LZ block");
+                }
+
+                int length = token & 15;
+                if (length == 15) {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xFF;
+                        length += b;
+                    } while (b == 255);
+                }
+
+                length += MIN_MATCH;
+                if (op + length > out.length) {
+                    throw new RuntimeException("corrupted LZ block");
+                }
+
+                // Byte by byte, a match may overlap its own output
+                for (int end = op + length; op < end; op++) {
+                    out[op] = out[op - distance];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new RuntimeException("corrupted LZ block");
+        }
+    }
+
+    private static int writeSequence(byte[] in, int from, int literals, byte[] out, int op, int matchLength) {
+        out[op++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchLength, 15));
+        if (literals >= 15) {
+            op = writeExtension(out, op, literals - 15);
+        }
+
+        System.arraycopy(in, from, out, op, literals);
+        return op + literals;
+    }
+
+    private static int writeLength(byte[] out, int op, int matchLength) {
+        return matchLength >= 15 ? writeExtension(out, op, matchLength - 15) : op;
+    }
+
+    private static int writeExtension(byte[] out, int op, int rest) {
+        while (rest >= 255) {
+            out[op++] = (byte) 255;
+            rest -= 255;
+        }
+        out[op++] = (byte) rest;
+        return op;
+    }
+
+    private static int readInt(byte[] in, int i) {
+        return (in[i] & 0xFF) | (in[i + 1] & 0xFF) << 8 | (in[i + 2] & 0xFF) << 16 | (in[i + 3] & 0xFF) << 24;
+    }
+}
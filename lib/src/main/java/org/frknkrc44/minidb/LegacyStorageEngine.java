@@ -0,0 +1,621 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/*
+ * The original engine, one file per key
+ *
+ * The file of a key is named after the first 128 bits of the SHA-256 of
+ * the key in hex, in two levels of shard folders named after its first
+ * two bytes (<folder>/ab/cd/abcd...). The path comes from the key alone,
+ * so a lookup is one file access however many keys there are.
+ *
+ * Value file format (big endian):
+ *   4 bytes MAGIC_KEYED
+ *   int     CRC32C of everything after it
+ *   int     key length, key bytes (UTF-8)
+ *   value bytes
+ *
+ * Older databases kept the files in the database folder itself, named
+ * after the key, which was trimmed and cut to its first and last 64
+ * chars. Their format is MAGIC, the CRC32C of the value and the value,
+ * or only the value before checksums. They are moved to the shard
+ * folders when the database is opened, long keys keep their cut name.
+ *
+ * A value is written to a temporary file in <folder>/.tmp, synced and
+ * moved over its key file, so a crash leaves the old or the new value,
+ * never a part. SYNC_ALWAYS also syncs the shard folder after every move,
+ * SYNC_COMMIT syncs the changed shard folders of single writes in the
+ * next sync() and those of groups right away. SYNC_NEVER syncs nothing.
+ * There is no way to sync many files at once, so a group of writes
+ * still syncs every temporary file, it only syncs each folder once.
+ *
+ * Atomic batches are written to <folder>.journal first and synced with
+ * its parent folder, then applied to the key files, which are synced
+ * before the journal is deleted. A journal which is still there at open
+ * time is replayed, a torn one was never committed and is dropped.
+ *
+ * An export target is not our own folder, it is only written to. Its
+ * files are left alone, without moving flat files or replaying a
+ * journal, and the values are written through a temporary folder of
+ * its own which is removed at close time.
+ *
+ * Journal format (big endian):
+ *   int   entry count
+ *   entries: int key length, key bytes (UTF-8),
+ *            int value length (-1 removes the key), value bytes
+ *   long  CRC32 of everything before it
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+final class LegacyStorageEngine implements StorageEngine {
+    private static final byte[] MAGIC = {(byte) 0xFF, 'S', 'M', 1};
+    private static final byte[] MAGIC_KEYED = {(byte) 0xFF, 'S', 'M', 2};
+    private static final int VALUE_HEADER_SIZE = 8;
+    private static final int KEYED_HEADER_SIZE = 12;
+    private static final int NAME_BYTES = 16;
+    private static final String TEMP_FOLDER = ".tmp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final File folder;
+    private final File journal;
+    private final File tempFolder;
+    private final LogProvider logProvider;
+    private final String syncPolicy;
+    private final boolean export;
+    // Shard folders with moves or deletions which wait for sync(), guarded by itself
+    private final Set<File> unsynced = new HashSet<>();
+
+    LegacyStorageEngine(File folder, LogProvider logProvider, String syncPolicy) throws IOException {
+        this(folder, logProvider, syncPolicy, false);
+    }
+
+    /**
+     * @param export The folder is an export target, see the header
+     */
+    LegacyStorageEngine(File folder, LogProvider logProvider, String syncPolicy, boolean export) throws IOException {
+        this.folder = folder;
+        this.journal = new File(folder.getParentFile(), folder.getName() + ".journal");
+        this.logProvider = logProvider;
+        this.syncPolicy = syncPolicy;
+        this.export = export;
+        if (!folder.exists()) folder.mkdirs();
+
+        if (export) {
+            this.tempFolder = Files.createTempDirectory(folder.toPath(), TEMP_FOLDER).toFile();
+            return;
+        }
+
+        // Leftovers of writes which never got moved, the folder is our own
+        this.tempFolder = new File(folder, TEMP_FOLDER);
+        StorageEngine.removeRecursive(tempFolder);
+        tempFolder.mkdirs();
+        moveFlatFiles();
+        recoverJournal();
+    }
+
+    @Override
+    public void load(BiConsumer<String, ValueHolder> consumer) {
+        if (!folder.exists()) {
+            folder.mkdirs();
+            return;
+        }
+
+        for (File f : valueFiles()) {
+            loadFile(f, consumer);
+        }
+    }
+
+    @Override
+    public void load(BiConsumer<String, ValueHolder> consumer, ForkJoinPool pool) throws IOException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+            return;
+        }
+
+        List<File> files = valueFiles();
+        Parallel.forRange(pool, files.size(), (from, to) -> {
+            for (int i = from; i < to; i++) {
+                loadFile(files.get(i), consumer);
+            }
+        });
+    }
+
+    private void loadFile(File f, BiConsumer<String, ValueHolder> consumer) {
+        try {
+            Record record = parseRecord(f);
+            consumer.accept(record.key, new ValueHolder.Heap(record.value));
+        } catch (IOException e) {
+            logProvider.onLog("Skipping the value of " + f.getName() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void loadKeys(ObjLongConsumer<String> consumer) {
+        for (File f : valueFiles()) {
+            try {
+                parseKey(f, consumer);
+            } catch (IOException e) {
+                logProvider.onLog("Skipping the key of " + f.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public byte[] read(String key) throws IOException {
+        File f = fileOf(key);
+        if (f == null) {
+            return null;
+        }
+
+        Record record;
+        try {
+            record = parseRecord(f);
+        } catch (NoSuchFileException ignored) {
+            return null;
+        }
+
+        // Only if 128 bits of SHA-256 collide
+        return key.equals(record.key) ? record.value : null;
+    }
+
+    @Override
+    public void write(String key, byte[] value) throws IOException {
+        File f = fileOf(key);
+        if (f == null) {
+            return;
+        }
+
+        move(writeTemp(key, value, !SuperMiniDB.SYNC_NEVER.equals(syncPolicy)), f);
+        changed(f.getParentFile());
+    }
+
+    @Override
+    public void write(Map<String, byte[]> batch) throws IOException {
+        boolean sync = !SuperMiniDB.SYNC_NEVER.equals(syncPolicy);
+        List<File> temps = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+
+        try {
+            for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+                File f = fileOf(entry.getKey());
+                if (f != null && entry.getValue() != null) {
+                    temps.add(writeTemp(entry.getKey(), entry.getValue(), sync));
+                    targets.add(f);
+                }
+            }
+        } catch (IOException e) {
+            for (File temp : temps) {
+                temp.delete();
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < temps.size(); i++) {
+            move(temps.get(i), targets.get(i));
+        }
+
+        Set<File> folders = new HashSet<>();
+        for (File f : targets) {
+            folders.add(f.getParentFile());
+        }
+
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            if (entry.getValue() == null) {
+                File f = fileOf(entry.getKey());
+                if (f != null && f.delete()) folders.add(f.getParentFile());
+            }
+        }
+
+        if (sync) {
+            for (File dir : folders) {
+                StorageEngine.syncFolder(dir);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void writeAtomic(Map<String, byte[]> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(batch.size());
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(key.length);
+            out.write(key);
+
+            byte[] value = entry.getValue();
+            out.writeInt(value != null ? value.length : -1);
+            if (value != null) out.write(value);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+
+        boolean sync = !SuperMiniDB.SYNC_NEVER.equals(syncPolicy);
+        try (FileOutputStream os = new FileOutputStream(journal)) {
+            os.write(bytes.toByteArray());
+            if (sync) os.getFD().sync();
+        }
+
+        // The journal must be found after a crash before any key file is moved
+        if (sync) StorageEngine.syncFolder(journal.getParentFile());
+
+        write(batch);
+        journal.delete();
+        if (sync) StorageEngine.syncFolder(journal.getParentFile());
+    }
+
+    @Override
+    public boolean supportsParallelWrites() {
+        // Every key has its own file and every write its own temporary file
+        return true;
+    }
+
+    @Override
+    public void remove(String key) {
+        File f = fileOf(key);
+        if (f != null && f.delete()) {
+            changed(f.getParentFile());
+        }
+    }
+
+    /**
+     * Sync a shard folder now or in the next sync(), as the policy says
+     */
+    private void changed(File dir) {
+        if (SuperMiniDB.SYNC_ALWAYS.equals(syncPolicy)) {
+            StorageEngine.syncFolder(dir);
+        } else if (SuperMiniDB.SYNC_COMMIT.equals(syncPolicy)) {
+            synchronized (unsynced) {
+                unsynced.add(dir);
+            }
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (SuperMiniDB.SYNC_NEVER.equals(syncPolicy)) {
+            return;
+        }
+
+        // The files themselves were synced before they were moved
+        List<File> folders;
+        synchronized (unsynced) {
+            folders = new ArrayList<>(unsynced);
+            unsynced.clear();
+        }
+
+        for (File dir : folders) {
+            StorageEngine.syncFolder(dir);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        StorageEngine.removeRecursive(folder);
+        journal.delete();
+    }
+
+    @Override
+    public long diskUsage() {
+        return StorageEngine.sizeOf(folder) + journal.length();
+    }
+
+    @Override
+    public void close() {
+        if (export) {
+            StorageEngine.removeRecursive(tempFolder);
+        }
+    }
+
+    /**
+     * @return File of the key, or null if the key can't have one
+     */
+    private File fileOf(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        byte[] hash = DIGESTS.get().digest(key.getBytes(StandardCharsets.UTF_8));
+        char[] name = new char[NAME_BYTES * 2];
+        for (int i = 0; i < NAME_BYTES; i++) {
+            name[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            name[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+
+        String shard = new String(name, 0, 2) + File.separator + new String(name, 2, 2);
+        return new File(folder, shard + File.separator + new String(name));
+    }
+
+    /**
+     * @return Value files of the shard folders
+     */
+    private List<File> valueFiles() {
+        List<File> out = new ArrayList<>();
+        // The temporary folder is in the database folder too
+        File[] shards = folder.listFiles(f -> f.isDirectory() && f.getName().length() == 2);
+        for (File shard : shards != null ? shards : new File[0]) {
+            File[] subShards = shard.listFiles(File::isDirectory);
+            for (File subShard : subShards != null ? subShards : new File[0]) {
+                File[] files = subShard.listFiles();
+                if (files != null) {
+                    out.addAll(Arrays.asList(files));
+                }
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Move the files of the flat layout to the shard folders. They are
+     * deleted after the new files are synced, a crash in between moves
+     * them again on the next open.
+     */
+    private void moveFlatFiles() throws IOException {
+        File[] files = folder.listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        logProvider.onLog("Moving " + files.length + " values of " + folder.getName() + " to shard folders");
+        boolean sync = !SuperMiniDB.SYNC_NEVER.equals(syncPolicy);
+        Set<File> folders = new HashSet<>();
+        List<File> moved = new ArrayList<>();
+        for (File f : files) {
+            byte[] value;
+            try {
+                value = parseValues(Files.readAllBytes(f.toPath()), f);
+            } catch (IOException e) {
+                // Left in place, it was skipped before too
+                logProvider.onLog("Skipping the value of " + f.getName() + ": " + e.getMessage());
+                continue;
+            }
+
+            File target = fileOf(f.getName());
+            move(writeTemp(f.getName(), value, sync), target);
+            folders.add(target.getParentFile());
+            moved.add(f);
+        }
+
+        if (sync) {
+            for (File dir : folders) {
+                StorageEngine.syncFolder(dir);
+            }
+        }
+
+        for (File f : moved) {
+            f.delete();
+        }
+
+        if (sync) {
+            StorageEngine.syncFolder(folder);
+        }
+    }
+
+    /**
+     * @return A temporary file with the key, the value and their header
+     */
+    private File writeTemp(String key, byte[] value, boolean sync) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] header = ByteBuffer.allocate(KEYED_HEADER_SIZE + keyBytes.length)
+                .put(MAGIC_KEYED)
+                .putInt(0)
+                .putInt(keyBytes.length)
+                .put(keyBytes)
+                .array();
+
+        int crc = Crc32c.compute(header, VALUE_HEADER_SIZE, header.length - VALUE_HEADER_SIZE);
+        crc = Crc32c.update(crc, value, 0, value.length);
+        ByteBuffer.wrap(header).putInt(MAGIC_KEYED.length, crc);
+
+        File temp = File.createTempFile("value", ".tmp", tempFolder);
+        try (FileOutputStream os = new FileOutputStream(temp)) {
+            os.write(header);
+            os.write(value);
+            if (sync) os.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        return temp;
+    }
+
+    private void move(File from, File to) throws IOException {
+        File dir = to.getParentFile();
+        if (!dir.isDirectory() && dir.mkdirs() && !SuperMiniDB.SYNC_NEVER.equals(syncPolicy)) {
+            // Make the new shard folders durable too
+            StorageEngine.syncFolder(dir.getParentFile());
+            StorageEngine.syncFolder(folder);
+        }
+
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void recoverJournal() throws IOException {
+        if (!journal.isFile()) {
+            return;
+        }
+
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+        Map<String, byte[]> batch = null;
+        if (bytes.length >= 12) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            if (crc.getValue() == ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong()) {
+                batch = parseJournal(bytes);
+            }
+        }
+
+        if (batch != null) {
+            logProvider.onLog("Replaying the journal of " + folder.getName());
+            write(batch);
+        }
+
+        journal.delete();
+        if (!SuperMiniDB.SYNC_NEVER.equals(syncPolicy)) {
+            StorageEngine.syncFolder(journal.getParentFile());
+        }
+    }
+
+    private static Map<String, byte[]> parseJournal(byte[] bytes) throws IOException {
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+
+            int length = in.readInt();
+            byte[] value = null;
+            if (length >= 0) {
+                value = new byte[length];
+                in.readFully(value);
+            }
+
+            batch.put(new String(key, StandardCharsets.UTF_8), value);
+        }
+
+        return batch;
+    }
+
+    /**
+     * @return Key and stored value of the file
+     * @throws IOException if they don't match their checksum
+     */
+    private static Record parseRecord(File f) throws IOException {
+        byte[] bytes = Files.readAllBytes(f.toPath());
+        if (bytes.length < KEYED_HEADER_SIZE || !hasMagic(bytes, MAGIC_KEYED)) {
+            throw new IOException("not a value file: " + f.getName());
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (Crc32c.compute(bytes, VALUE_HEADER_SIZE, bytes.length - VALUE_HEADER_SIZE) != buffer.getInt(MAGIC_KEYED.length)) {
+            throw new IOException("checksum mismatch in " + f.getName());
+        }
+
+        int keyLength = buffer.getInt(VALUE_HEADER_SIZE);
+        if (keyLength < 0 || keyLength > bytes.length - KEYED_HEADER_SIZE) {
+            throw new IOException("invalid key length in " + f.getName());
+        }
+
+        String key = new String(bytes, KEYED_HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+        return new Record(key, Arrays.copyOfRange(bytes, KEYED_HEADER_SIZE + keyLength, bytes.length));
+    }
+
+    /**
+     * @return Key of the file, without reading and checking its value
+     */
+    /**
+     * Pass the key of the file and the expiry time in front of its
+     * value to the consumer, without reading the rest of the value
+     */
+    private static void parseKey(File f, ObjLongConsumer<String> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            byte[] magic = new byte[MAGIC_KEYED.length];
+            in.readFully(magic);
+            if (!hasMagic(magic, MAGIC_KEYED)) {
+                throw new IOException("not a value file: " + f.getName());
+            }
+
+            in.readInt();
+            int keyLength = in.readInt();
+            if (keyLength < 0 || keyLength > f.length() - KEYED_HEADER_SIZE) {
+                throw new IOException("invalid key length in " + f.getName());
+            }
+
+            byte[] key = new byte[keyLength];
+            in.readFully(key);
+
+            byte[] head = new byte[(int) Math.min(Expiry.HEADER, f.length() - KEYED_HEADER_SIZE - keyLength)];
+            in.readFully(head);
+            consumer.accept(new String(key, StandardCharsets.UTF_8), Expiry.expiresAt(head));
+        }
+    }
+
+    /**
+     * @return Stored value of a file of the flat layout
+     * @throws IOException if the value doesn't match its checksum
+     */
+    private static byte[] parseValues(byte[] bytes, File f) throws IOException {
+        if (bytes.length < VALUE_HEADER_SIZE || !hasMagic(bytes, MAGIC)) {
+            return bytes;
+        }
+
+        int crc = ByteBuffer.wrap(bytes).getInt(MAGIC.length);
+        if (Crc32c.compute(bytes, VALUE_HEADER_SIZE, bytes.length - VALUE_HEADER_SIZE) != crc) {
+            throw new IOException("checksum mismatch in " + f.getName());
+        }
+
+        return Arrays.copyOfRange(bytes, VALUE_HEADER_SIZE, bytes.length);
+    }
+
+    private static boolean hasMagic(byte[] bytes, byte[] magic) {
+        for (int i = 0; i < magic.length; i++) {
+            if (bytes[i] != magic[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static final class Record {
+        final String key;
+        final byte[] value;
+
+        Record(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
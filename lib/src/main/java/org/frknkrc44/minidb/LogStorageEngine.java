@@ -0,0 +1,807 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only log layout
+ *
+ * Records are appended to numbered segment files, a segment is sealed
+ * when it reaches MAX_SEGMENT_SIZE and a new one is started.
+ *
+ * Record format (big endian):
+ *   int   CRC32 of the rest of the record
+ *   byte  type (PUT/REMOVE/COMMIT/BATCH_PUT/BATCH_REMOVE)
+ *   int   key length
+ *   int   value length
+ *   key bytes (UTF-8), value bytes
+ *
+ * An atomic batch is its BATCH_* records and a COMMIT record, appended
+ * with one write into one segment. Replay holds the batch records back
+ * until their COMMIT, a batch without one is a torn write and dropped.
+ * The compactor copies live batch records as plain PUT records.
+ *
+ * Segments are named <major>-<minor>.seg and replayed in that order, later
+ * records win. Writers only use minor 0, the compactor copies live records of
+ * all sealed segments into <last sealed major>-<1..n>.seg and deletes the
+ * inputs, so its output is always replayed before the active segment.
+ *
+ * In mapped mode segments are memory-mapped and load() hands out views into
+ * the mappings instead of copies. Every record is checksummed at open time
+ * like in the normal replay, so a view never shows a broken value. read()
+ * checks the record checksum of the value it returns.
+ *
+ * SYNC_ALWAYS syncs the active segment after every write, SYNC_COMMIT only
+ * in sync() and SYNC_NEVER never. New segments are synced into the folder
+ * unless the policy is SYNC_NEVER. Sealed segments and compaction outputs
+ * are synced regardless, with the folder before the inputs are deleted,
+ * the layout relies on them.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+final class LogStorageEngine implements StorageEngine {
+    static final int HEADER_SIZE = 13;
+    private static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int COMPACT_MIN_DEAD_BYTES = 4 * 1024 * 1024;
+    private static final byte TYPE_PUT = 1,
+            TYPE_REMOVE = 2,
+            TYPE_COMMIT = 3,
+            TYPE_BATCH_PUT = 4,
+            TYPE_BATCH_REMOVE = 5;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File folder;
+    private final LogProvider logProvider;
+    private final boolean mapped;
+    private final String syncPolicy;
+    private final TreeSet<Segment> segments = new TreeSet<>();
+    private final HashMap<String, Location> index = new HashMap<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SuperMiniDB-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Segment active;
+    private long totalBytes = 0, deadBytes = 0;
+    private boolean compacting = false, closed = false;
+
+    LogStorageEngine(File folder, LogProvider logProvider, boolean mapped, String syncPolicy) throws IOException {
+        this.folder = folder;
+        this.logProvider = logProvider;
+        this.mapped = mapped;
+        this.syncPolicy = syncPolicy;
+        if (!folder.exists()) folder.mkdirs();
+
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                Segment segment = Segment.parse(f);
+                if (segment != null) segments.add(segment);
+            }
+        }
+
+        for (Segment segment : segments) {
+            recover(segment);
+        }
+
+        Segment last = segments.isEmpty() ? null : segments.last();
+        if (last != null && last.minor == 0 && last.size < MAX_SEGMENT_SIZE) {
+            active = last;
+        } else {
+            active = newSegment(last == null ? 1 : last.major + 1, 0);
+        }
+    }
+
+    @Override
+    public synchronized void load(BiConsumer<String, ValueHolder> consumer) throws IOException {
+        if (mapped) {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                Location location = entry.getValue();
+                consumer.accept(entry.getKey(), new ValueHolder.Mapped(
+                        location.segment.map(), (int) location.valueOffset(), location.valueLength));
+            }
+            return;
+        }
+
+        for (Map.Entry<String, Location> entry : sortedEntries()) {
+            consumer.accept(entry.getKey(), new ValueHolder.Heap(readValue(entry.getValue())));
+        }
+    }
+
+    @Override
+    public synchronized void load(BiConsumer<String, ValueHolder> consumer, ForkJoinPool pool) throws IOException {
+        if (mapped) {
+            // Only views, nothing to read
+            load(consumer);
+            return;
+        }
+
+        // Positional reads don't share the channel position, every part reads in file order
+        List<Map.Entry<String, Location>> entries = sortedEntries();
+        Parallel.forRange(pool, entries.size(), (from, to) -> {
+            for (int i = from; i < to; i++) {
+                Map.Entry<String, Location> entry = entries.get(i);
+                consumer.accept(entry.getKey(), new ValueHolder.Heap(readValue(entry.getValue())));
+            }
+        });
+    }
+
+    /**
+     * @return Index entries in file order, not in hash order
+     */
+    private List<Map.Entry<String, Location>> sortedEntries() {
+        List<Map.Entry<String, Location>> entries = new ArrayList<>(index.entrySet());
+        entries.sort((a, b) -> a.getValue().compareTo(b.getValue()));
+        return entries;
+    }
+
+    @Override
+    public synchronized void loadKeys(ObjLongConsumer<String> consumer) {
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue().expiresAt);
+        }
+    }
+
+    /**
+     * Reads without the monitor, positional reads don't touch the channel
+     * position and a record is never changed once it is appended
+     */
+    @Override
+    public byte[] read(String key) throws IOException {
+        Location location;
+        byte[] record;
+        while (true) {
+            synchronized (this) {
+                location = index.get(key);
+            }
+
+            if (location == null) {
+                return null;
+            }
+
+            record = new byte[location.length];
+            try {
+                readFully(location.segment.channel, ByteBuffer.wrap(record), location.offset);
+                break;
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    // The compactor moved the record and deleted its segment
+                    if (closed || index.get(key) == location) throw e;
+                }
+            }
+        }
+
+        if (checksum(record, record.length) != ByteBuffer.wrap(record).getInt()) {
+            throw new IOException("checksum mismatch in " + location.segment.file.getName()
+                    + " at " + location.offset);
+        }
+
+        return Arrays.copyOfRange(record, HEADER_SIZE + location.keyLength, record.length);
+    }
+
+    @Override
+    public synchronized void write(String key, byte[] value) throws IOException {
+        append(key, TYPE_PUT, value);
+        written();
+    }
+
+    @Override
+    public synchronized void remove(String key) throws IOException {
+        if (index.containsKey(key)) {
+            append(key, TYPE_REMOVE, new byte[0]);
+            written();
+        }
+    }
+
+    @Override
+    public synchronized void write(Map<String, byte[]> batch) throws IOException {
+        List<String> keys = new ArrayList<>(batch.size());
+        List<byte[]> records = new ArrayList<>(batch.size());
+
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() != null) {
+                keys.add(key);
+                records.add(encodeRecord(key, TYPE_PUT, entry.getValue()));
+            } else if (index.containsKey(key)) {
+                keys.add(key);
+                records.add(encodeRecord(key, TYPE_REMOVE, new byte[0]));
+            }
+        }
+
+        append(keys, records);
+        written();
+    }
+
+    @Override
+    public synchronized void writeAtomic(Map<String, byte[]> batch) throws IOException {
+        List<String> keys = new ArrayList<>(batch.size() + 1);
+        List<byte[]> records = new ArrayList<>(batch.size() + 1);
+        long length = 0;
+
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            String key = entry.getKey();
+            byte[] record;
+            if (entry.getValue() != null) {
+                record = encodeRecord(key, TYPE_BATCH_PUT, entry.getValue());
+            } else if (index.containsKey(key)) {
+                record = encodeRecord(key, TYPE_BATCH_REMOVE, new byte[0]);
+            } else {
+                continue;
+            }
+
+            keys.add(key);
+            records.add(record);
+            length += record.length;
+        }
+
+        if (records.isEmpty()) {
+            return;
+        }
+
+        byte[] commit = encodeRecord("", TYPE_COMMIT, new byte[0]);
+        keys.add("");
+        records.add(commit);
+        length += commit.length;
+
+        // The whole batch goes into one segment, even if it overflows it
+        if (active.size > 0 && active.size + length > MAX_SEGMENT_SIZE) {
+            active.channel.force(false);
+            active = newSegment(active.major + 1, 0);
+        }
+
+        appendTo(active, keys, records, 0, records.size(), length);
+        written();
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (!SuperMiniDB.SYNC_NEVER.equals(syncPolicy)) {
+            active.channel.force(false);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            close();
+        } catch (Throwable ignored) {}
+
+        StorageEngine.removeRecursive(folder);
+    }
+
+    @Override
+    public long diskUsage() {
+        return StorageEngine.sizeOf(folder);
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            closed = true;
+            for (Segment segment : segments) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    private byte[] readValue(Location location) throws IOException {
+        byte[] out = new byte[location.valueLength];
+        readFully(location.segment.channel, ByteBuffer.wrap(out), location.valueOffset());
+        return out;
+    }
+
+    private void append(String key, byte type, byte[] value) throws IOException {
+        append(Collections.singletonList(key), Collections.singletonList(encodeRecord(key, type, value)));
+    }
+
+    /**
+     * Append the records with one write per segment they land in
+     */
+    private void append(List<String> keys, List<byte[]> records) throws IOException {
+        int i = 0;
+        while (i < records.size()) {
+            if (active.size > 0 && active.size + records.get(i).length > MAX_SEGMENT_SIZE) {
+                active.channel.force(false);
+                active = newSegment(active.major + 1, 0);
+            }
+
+            int end = i;
+            long length = 0;
+            do {
+                length += records.get(end++).length;
+            } while (end < records.size() && active.size + length + records.get(end).length <= MAX_SEGMENT_SIZE);
+
+            appendTo(active, keys, records, i, end, length);
+            i = end;
+        }
+    }
+
+    /**
+     * Write records [from, to) to the end of a segment with one write
+     */
+    private void appendTo(Segment segment, List<String> keys, List<byte[]> records,
+                          int from, int to, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        for (int j = from; j < to; j++) {
+            buffer.put(records.get(j));
+        }
+        buffer.flip();
+
+        long offset = segment.size;
+        writeFully(segment.channel, buffer, offset);
+
+        for (int j = from; j < to; j++) {
+            byte[] record = records.get(j);
+            ByteBuffer header = ByteBuffer.wrap(record);
+            apply(keys.get(j), record[4], segment, offset, record.length, header.getInt(5), header.getInt(9),
+                    expiresAt(record, header.getInt(5), header.getInt(9)));
+            offset += record.length;
+        }
+
+        segment.size = offset;
+        totalBytes += length;
+    }
+
+    private static byte[] encodeRecord(String key, byte type, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_SIZE + keyBytes.length + value.length;
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(0).put(type).putInt(keyBytes.length).putInt(value.length);
+        record.put(keyBytes).put(value);
+        record.putInt(0, checksum(record.array(), length));
+        return record.array();
+    }
+
+    private void apply(String key, byte type, Segment segment, long offset,
+                       int length, int keyLength, int valueLength, long expiresAt) {
+        Location old;
+        if (type == TYPE_COMMIT) {
+            segment.deadBytes += length;
+            deadBytes += length;
+            return;
+        } else if (type == TYPE_PUT || type == TYPE_BATCH_PUT) {
+            old = index.put(key, new Location(segment, offset, length, keyLength, valueLength, expiresAt));
+        } else {
+            old = index.remove(key);
+            // Tombstones are garbage as soon as the compactor drops the old value
+            segment.deadBytes += length;
+            deadBytes += length;
+        }
+
+        if (old != null) {
+            old.segment.deadBytes += old.length;
+            deadBytes += old.length;
+        }
+    }
+
+    private void recover(Segment segment) throws IOException {
+        Replay replay = new Replay(segment);
+        long scanned = mapped ? scanMapped(segment, replay)
+                : scan(segment, (type, key, offset, record, keyLength, valueLength) ->
+                        replay.accept(type, key, offset, record.length, keyLength, valueLength,
+                                expiresAt(record, keyLength, valueLength)));
+        long valid = replay.end(scanned);
+
+        long size = segment.channel.size();
+        if (valid < size) {
+            logProvider.onLog("Segment " + segment.file.getName() + " has a broken tail at "
+                    + valid + ", dropping " + (size - valid) + " bytes");
+            // Never touch a mapping which is longer than the file
+            segment.mapping = null;
+            segment.channel.truncate(valid);
+        }
+
+        segment.size = valid;
+    }
+
+    /**
+     * Build the index from a mapped segment without copying the values
+     * @return Length of the valid part of the segment
+     */
+    private long scanMapped(Segment segment, Replay replay) throws IOException {
+        MappedByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.channel.size());
+        segment.mapping = buffer;
+
+        CRC32 crc = new CRC32();
+        int limit = buffer.limit();
+        int offset = 0;
+
+        while (limit - offset >= HEADER_SIZE) {
+            int checksum = buffer.getInt(offset);
+            byte type = buffer.get(offset + 4);
+            int keyLength = buffer.getInt(offset + 5);
+            int valueLength = buffer.getInt(offset + 9);
+            if (!isValidType(type) || keyLength < 0 || valueLength < 0
+                    || offset + HEADER_SIZE + (long) keyLength + valueLength > limit) {
+                break;
+            }
+
+            int length = HEADER_SIZE + keyLength + valueLength;
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + length).position(offset + 4);
+            crc.reset();
+            crc.update(view);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            view.limit(limit).position(offset + HEADER_SIZE);
+            view.get(keyBytes);
+            view.limit(offset + length);
+
+            replay.accept(type, new String(keyBytes, StandardCharsets.UTF_8), offset, length, keyLength, valueLength,
+                    Expiry.expiresAt(view));
+            offset += length;
+        }
+
+        return offset;
+    }
+
+    private void written() throws IOException {
+        if (SuperMiniDB.SYNC_ALWAYS.equals(syncPolicy)) {
+            active.channel.force(false);
+        }
+
+        maybeCompact();
+    }
+
+    private void maybeCompact() {
+        if (!compacting && deadBytes >= COMPACT_MIN_DEAD_BYTES && deadBytes * 2 >= totalBytes) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    private void compact() {
+        try {
+            List<Segment> sealed;
+            synchronized (this) {
+                // Sealed segments are synced, see the header
+                active.channel.force(false);
+                active = newSegment(active.major + 1, 0);
+                sealed = new ArrayList<>(segments.headSet(active));
+            }
+
+            long major = sealed.get(sealed.size() - 1).major;
+            List<Segment> outputs = new ArrayList<>();
+
+            for (Segment segment : sealed) {
+                scan(segment, (type, key, offset, record, keyLength, valueLength) -> {
+                    if (compactor.isShutdown()) {
+                        throw new IOException("Compaction aborted");
+                    }
+
+                    synchronized (this) {
+                        if (!isLive(key, segment, offset)) {
+                            return;
+                        }
+
+                        Segment out = outputs.isEmpty() ? null : outputs.get(outputs.size() - 1);
+                        if (out == null || out.size + record.length > MAX_SEGMENT_SIZE) {
+                            out = newSegment(major, outputs.size() + 1);
+                            outputs.add(out);
+                        }
+
+                        if (type == TYPE_BATCH_PUT) {
+                            // Its COMMIT record is not copied
+                            record[4] = TYPE_PUT;
+                            ByteBuffer.wrap(record).putInt(0, checksum(record, record.length));
+                        }
+
+                        long newOffset = out.size;
+                        writeFully(out.channel, ByteBuffer.wrap(record), newOffset);
+                        out.size += record.length;
+                        totalBytes += record.length;
+                        index.put(key, new Location(out, newOffset, record.length, keyLength, valueLength,
+                                index.get(key).expiresAt));
+                    }
+                });
+            }
+
+            for (Segment out : outputs) {
+                out.channel.force(false);
+            }
+
+            // The outputs must be found after a crash before any input is gone
+            StorageEngine.syncFolder(folder);
+
+            synchronized (this) {
+                // Oldest first, a crash in between must not resurrect removed keys
+                for (Segment segment : sealed) {
+                    segments.remove(segment);
+                    totalBytes -= segment.size;
+                    deadBytes -= segment.deadBytes;
+                    segment.channel.close();
+                    segment.file.delete();
+                }
+            }
+        } catch (Throwable t) {
+            logProvider.onLog("Compaction failed: " + t);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private boolean isLive(String key, Segment segment, long offset) {
+        Location location = index.get(key);
+        return location != null && location.segment == segment && location.offset == offset;
+    }
+
+    private Segment newSegment(long major, int minor) throws IOException {
+        Segment segment = new Segment(major, minor);
+        segment.file = new File(folder, segment.getName());
+        segment.open();
+        segments.add(segment);
+        if (!SuperMiniDB.SYNC_NEVER.equals(syncPolicy)) {
+            // A synced record is useless in a file which is not found again
+            StorageEngine.syncFolder(folder);
+        }
+        return segment;
+    }
+
+    /**
+     * Read the records of a segment sequentially
+     * @return Length of the valid part of the segment
+     */
+    private static long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long offset = 0;
+        long size = segment.file.length();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.file), 64 * 1024))) {
+            while (true) {
+                int crc = in.readInt();
+                byte type = in.readByte();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                if (!isValidType(type) || keyLength < 0 || valueLength < 0
+                        || offset + HEADER_SIZE + (long) keyLength + valueLength > size) {
+                    break;
+                }
+
+                byte[] record = new byte[HEADER_SIZE + keyLength + valueLength];
+                ByteBuffer.wrap(record).putInt(crc).put(type).putInt(keyLength).putInt(valueLength);
+                in.readFully(record, HEADER_SIZE, keyLength + valueLength);
+                if (checksum(record, record.length) != crc) {
+                    break;
+                }
+
+                String key = new String(record, HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+                visitor.visit(type, key, offset, record, keyLength, valueLength);
+                offset += record.length;
+            }
+        } catch (EOFException ignored) {}
+
+        return offset;
+    }
+
+    /**
+     * @return Expiry time in front of the value of a record, see Expiry
+     */
+    private static long expiresAt(byte[] record, int keyLength, int valueLength) {
+        return Expiry.expiresAt(ByteBuffer.wrap(record, HEADER_SIZE + keyLength, valueLength));
+    }
+
+    private static boolean isValidType(byte type) {
+        return type >= TYPE_PUT && type <= TYPE_BATCH_REMOVE;
+    }
+
+    private static int checksum(byte[] record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, length - 4);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Applies the records of a segment while opening it,
+     * batch records wait for their COMMIT record
+     */
+    private final class Replay {
+        private final Segment segment;
+        private final List<Pending> pending = new ArrayList<>();
+        private long batchStart = -1;
+
+        Replay(Segment segment) {
+            this.segment = segment;
+        }
+
+        void accept(byte type, String key, long offset, int length, int keyLength, int valueLength,
+                    long expiresAt) {
+            totalBytes += length;
+
+            if (type == TYPE_BATCH_PUT || type == TYPE_BATCH_REMOVE) {
+                if (pending.isEmpty()) batchStart = offset;
+                pending.add(new Pending(key, type,
+                        new Location(segment, offset, length, keyLength, valueLength, expiresAt)));
+                return;
+            }
+
+            if (type == TYPE_COMMIT) {
+                for (Pending p : pending) {
+                    Location l = p.location;
+                    apply(p.key, p.type, segment, l.offset, l.length, l.keyLength, l.valueLength, l.expiresAt);
+                }
+                pending.clear();
+            }
+
+            apply(key, type, segment, offset, length, keyLength, valueLength, expiresAt);
+        }
+
+        /**
+         * @return End of the committed part of the scanned length
+         */
+        long end(long scanned) {
+            if (pending.isEmpty()) {
+                return scanned;
+            }
+
+            for (Pending p : pending) {
+                totalBytes -= p.location.length;
+            }
+
+            return batchStart;
+        }
+    }
+
+    private static final class Pending {
+        final String key;
+        final byte type;
+        final Location location;
+
+        Pending(String key, byte type, Location location) {
+            this.key = key;
+            this.type = type;
+            this.location = location;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, String key, long offset, byte[] record,
+                   int keyLength, int valueLength) throws IOException;
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+        final long major;
+        final int minor;
+        File file;
+        FileChannel channel;
+        MappedByteBuffer mapping;
+        long size = 0;
+        long deadBytes = 0;
+
+        Segment(long major, int minor) {
+            this.major = major;
+            this.minor = minor;
+        }
+
+        static Segment parse(File file) throws IOException {
+            String name = file.getName();
+            String[] parts = name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("-");
+            if (parts.length != 2) {
+                return null;
+            }
+
+            Segment segment;
+            try {
+                segment = new Segment(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+            } catch (NumberFormatException ignored) {
+                return null;
+            }
+
+            segment.file = file;
+            segment.open();
+            return segment;
+        }
+
+        void open() throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        /**
+         * @return A read-only mapping which covers the whole segment
+         */
+        MappedByteBuffer map() throws IOException {
+            if (mapping == null || mapping.capacity() < size) {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            return mapping;
+        }
+
+        String getName() {
+            return String.format(Locale.ROOT, "%08d-%04d%s", major, minor, SEGMENT_SUFFIX);
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            int cmp = Long.compare(major, o.major);
+            return cmp != 0 ? cmp : Integer.compare(minor, o.minor);
+        }
+    }
+
+    private static final class Location implements Comparable<Location> {
+        final Segment segment;
+        final long offset;
+        final int length, keyLength, valueLength;
+        // Kept for loadKeys(), see Expiry
+        final long expiresAt;
+
+        Location(Segment segment, long offset, int length, int keyLength, int valueLength, long expiresAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.expiresAt = expiresAt;
+        }
+
+        long valueOffset() {
+            return offset + HEADER_SIZE + keyLength;
+        }
+
+        @Override
+        public int compareTo(Location o) {
+            int cmp = segment.compareTo(o.segment);
+            return cmp != 0 ? cmp : Long.compare(offset, o.offset);
+        }
+    }
+}
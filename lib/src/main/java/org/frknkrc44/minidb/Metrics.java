@@ -0,0 +1,42 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Receives the timings of database operations. It is called on the
+ * hot path, implementations must be thread-safe and should not allocate.
+ * See OperationMetrics for the built-in implementation.
+ */
+public interface Metrics {
+    int GET = 0,
+            PUT = 1,
+            QUERY = 2,
+            READ_ALL = 3,
+            WRITE_ALL = 4,
+            ENCODE = 5,
+            DECODE = 6;
+
+    /** Operation names, indexed by the operation constants */
+    List<String> NAMES = Collections.unmodifiableList(Arrays.asList(
+            "get", "put", "query", "readAll", "writeAll", "encode", "decode"));
+
+    /** Records nothing, the database doesn't even read the clock */
+    Metrics NONE = (operation, nanos) -> {};
+
+    /**
+     * @param operation One of the operation constants
+     * @param nanos     Duration of the operation
+     */
+    void record(int operation, long nanos);
+}
@@ -0,0 +1,94 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms per operation. A histogram has one
+ * bucket per power of two nanoseconds, recording is a few LongAdder
+ * increments and never allocates.
+ */
+public final class OperationMetrics implements Metrics {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] counts = new LongAdder[NAMES.size()];
+    private final LongAdder[] totals = new LongAdder[NAMES.size()];
+    private final LongAdder[][] histograms = new LongAdder[NAMES.size()][BUCKETS];
+
+    public OperationMetrics() {
+        for (int i = 0; i < NAMES.size(); i++) {
+            counts[i] = new LongAdder();
+            totals[i] = new LongAdder();
+            for (int j = 0; j < BUCKETS; j++) {
+                histograms[i][j] = new LongAdder();
+            }
+        }
+    }
+
+    @Override
+    public void record(int operation, long nanos) {
+        counts[operation].increment();
+        totals[operation].add(nanos);
+        histograms[operation][63 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+    }
+
+    public long getCount(int operation) {
+        return counts[operation].sum();
+    }
+
+    public long getTotalNanos(int operation) {
+        return totals[operation].sum();
+    }
+
+    public long getMeanNanos(int operation) {
+        long count = getCount(operation);
+        return count > 0 ? getTotalNanos(operation) / count : 0;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return Upper bound of the histogram bucket of the percentile,
+     *         so it is at most twice the real value
+     */
+    public long getPercentileNanos(int operation, double percentile) {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histograms[operation][i].sum();
+            count += buckets[i];
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return (2L << i) - 1;
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    public void reset() {
+        for (int i = 0; i < NAMES.size(); i++) {
+            counts[i].reset();
+            totals[i].reset();
+            for (LongAdder bucket : histograms[i]) {
+                bucket.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits an index range over the threads of a ForkJoinPool
+ */
+final class Parallel {
+    interface RangeTask {
+        void run(int from, int to) throws IOException;
+    }
+
+    private static final int MIN_GRAIN = 16;
+
+    private Parallel() {}
+
+    /**
+     * Run the task over [0, size) in parallel and wait for it
+     */
+    static void forRange(ForkJoinPool pool, int size, RangeTask task) throws IOException {
+        int grain = Math.max(MIN_GRAIN, size / (pool.getParallelism() * 4));
+        if (size <= grain) {
+            task.run(0, size);
+            return;
+        }
+
+        try {
+            pool.invoke(new Range(task, 0, size, grain));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeTask task;
+        private final int from, to, grain;
+
+        Range(RangeTask task, int from, int to, int grain) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                try {
+                    task.run(from, to);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new Range(task, from, mid, grain), new Range(task, mid, to, grain));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Keeps encoded values in direct ByteBuffer slabs, out of the reach of
+ * the garbage collector. Blocks are powers of two in size and a freed
+ * block goes to the free list of its size class. A class without free
+ * blocks splits one of a larger class, then takes a new block from the
+ * last slab. The tail of a slab which is too short for a block is split
+ * into the free lists of the smaller classes before the next slab.
+ * When every block is freed the slabs are dropped, so the direct memory
+ * is given back after a clearRAM() or removeDB().
+ * Allocations and frees take the write lock, reads copy the value
+ * optimistically and fall back to the read lock if a write happened.
+ * A freed holder reads as null, its key has a newer holder by then.
+ */
+final class SlabAllocator {
+    private static final int SLAB_SHIFT = 22;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int MIN_SHIFT = 4;
+    private static final int CLASSES = SLAB_SHIFT - MIN_SHIFT + 1;
+
+    private final StampedLock lock = new StampedLock();
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    // Guarded by the write lock
+    private final long[][] free = new long[CLASSES][];
+    private final int[] freeCount = new int[CLASSES];
+    private int top = SLAB_SIZE;
+    private long used = 0;
+    private boolean closed = false;
+
+    SlabAllocator() {
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new long[16];
+        }
+    }
+
+    /**
+     * @return Off-heap copy of the value, or null if it
+     *         doesn't fit in a slab and has to stay on the heap
+     */
+    ValueHolder.OffHeap allocate(byte[] value) {
+        if (value.length > SLAB_SIZE) {
+            return null;
+        }
+
+        int sizeClass = sizeClassOf(value.length);
+        long stamp = lock.writeLock();
+        try {
+            if (closed) {
+                throw new RuntimeException("The database is closed");
+            }
+
+            long address = takeFree(sizeClass);
+            if (address < 0) {
+                address = bump(1 << (sizeClass + MIN_SHIFT));
+            }
+
+            ByteBuffer slab = slabs[(int) (address >>> 32)].duplicate();
+            slab.position((int) address);
+            slab.put(value);
+            used += 1 << (sizeClass + MIN_SHIFT);
+            return new ValueHolder.OffHeap(this, address, value.length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return Copy of the value, or null if the holder is freed
+     */
+    byte[] read(ValueHolder.OffHeap holder) {
+        byte[] out = new byte[holder.length];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0 && !holder.freed && copy(holder, out)) {
+            if (lock.validate(stamp) && !holder.freed) {
+                return out;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            if (holder.freed) {
+                return null;
+            }
+
+            if (!copy(holder, out)) {
+                throw new RuntimeException("The database is closed");
+            }
+            return out;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    void free(ValueHolder holder) {
+        if (!(holder instanceof ValueHolder.OffHeap)) {
+            return;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            release((ValueHolder.OffHeap) holder);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void freeAll(Collection<ValueHolder> holders) {
+        long stamp = lock.writeLock();
+        try {
+            for (ValueHolder holder : holders) {
+                if (holder instanceof ValueHolder.OffHeap) {
+                    release((ValueHolder.OffHeap) holder);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drop the slabs, the holders which are still allocated can't be read anymore
+     */
+    void close() {
+        long stamp = lock.writeLock();
+        try {
+            closed = true;
+            reset();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return Bytes of the blocks in use
+     */
+    long usedBytes() {
+        return used;
+    }
+
+    /**
+     * @return Bytes of all slabs
+     */
+    long reservedBytes() {
+        return (long) slabs.length * SLAB_SIZE;
+    }
+
+    private void release(ValueHolder.OffHeap holder) {
+        if (holder.allocator != this || holder.freed) {
+            return;
+        }
+
+        holder.freed = true;
+        if (closed) {
+            return;
+        }
+
+        int sizeClass = sizeClassOf(holder.length);
+        used -= 1 << (sizeClass + MIN_SHIFT);
+        if (used == 0) {
+            // Nothing is allocated, start over instead of keeping the slabs
+            reset();
+            return;
+        }
+
+        pushFree(sizeClass, holder.address);
+    }
+
+    private void reset() {
+        slabs = new ByteBuffer[0];
+        Arrays.fill(freeCount, 0);
+        top = SLAB_SIZE;
+        used = 0;
+    }
+
+    private void pushFree(int sizeClass, long address) {
+        if (freeCount[sizeClass] == free[sizeClass].length) {
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], freeCount[sizeClass] * 2);
+        }
+
+        free[sizeClass][freeCount[sizeClass]++] = address;
+    }
+
+    /**
+     * @return A free block of the class, split from a larger one if
+     *         needed, or -1 if there is none
+     */
+    private long takeFree(int sizeClass) {
+        for (int c = sizeClass; c < CLASSES; c++) {
+            if (freeCount[c] == 0) {
+                continue;
+            }
+
+            long address = free[c][--freeCount[c]];
+            // Keep the lower half, the upper one goes to the class below
+            while (c > sizeClass) {
+                c--;
+                pushFree(c, address + (1 << (c + MIN_SHIFT)));
+            }
+            return address;
+        }
+
+        return -1;
+    }
+
+    private long bump(int size) {
+        if (top + size > SLAB_SIZE) {
+            // The tail is too short for this block, but not for smaller ones
+            for (int c = CLASSES - 1; c >= 0; c--) {
+                int blockSize = 1 << (c + MIN_SHIFT);
+                while (SLAB_SIZE - top >= blockSize) {
+                    pushFree(c, ((long) (slabs.length - 1) << 32) | top);
+                    top += blockSize;
+                }
+            }
+
+            ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+            grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            slabs = grown;
+            top = 0;
+        }
+
+        long address = ((long) (slabs.length - 1) << 32) | top;
+        top += size;
+        return address;
+    }
+
+    /**
+     * @return The value is copied, false if its slab is dropped
+     */
+    private boolean copy(ValueHolder.OffHeap holder, byte[] out) {
+        ByteBuffer[] current = slabs;
+        int index = (int) (holder.address >>> 32);
+        if (index >= current.length) {
+            return false;
+        }
+
+        ByteBuffer slab = current[index].duplicate();
+        slab.position((int) holder.address);
+        slab.get(out);
+        return true;
+    }
+
+    private static int sizeClassOf(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1 << MIN_SHIFT) - 1);
+        return shift - MIN_SHIFT;
+    }
+}
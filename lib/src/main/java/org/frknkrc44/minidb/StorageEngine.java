@@ -0,0 +1,144 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Persistence backend of a database. Values are handled as the
+ * already encoded bytes, so engines never touch the cipher.
+ */
+interface StorageEngine extends Closeable {
+    /**
+     * Read every stored key and pass it to the consumer
+     * @param consumer Receives the key and its stored value
+     */
+    void load(BiConsumer<String, ValueHolder> consumer) throws IOException;
+
+    /**
+     * Like load(), but the engine may split the reads over the pool,
+     * so the consumer can be called by many threads at the same time
+     */
+    default void load(BiConsumer<String, ValueHolder> consumer, ForkJoinPool pool) throws IOException {
+        load(consumer);
+    }
+
+    /**
+     * Pass every stored key to the consumer without reading the values
+     * @param consumer Receives the keys and the expiry times of their
+     *                 values, 0 if they never expire, see Expiry
+     */
+    default void loadKeys(ObjLongConsumer<String> consumer) throws IOException {
+        load((key, value) -> {
+            ByteBuffer buffer = value.buffer();
+            consumer.accept(key, buffer != null ? Expiry.expiresAt(buffer) : 0);
+        });
+    }
+
+    /**
+     * Read a single key
+     * @param key Key to read
+     * @return Stored value, or null if the key does not exist
+     */
+    byte[] read(String key) throws IOException;
+
+    void write(String key, byte[] value) throws IOException;
+
+    void remove(String key) throws IOException;
+
+    /**
+     * Write a group of keys
+     * @param batch Keys and values to write, null values remove the key
+     */
+    default void write(Map<String, byte[]> batch) throws IOException {
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            if (entry.getValue() != null) {
+                write(entry.getKey(), entry.getValue());
+            } else {
+                remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Write a group of keys all or nothing, a crash while writing
+     * must leave either all of them or none of them after reopening
+     * @param batch Keys and values to write, null values remove the key
+     */
+    void writeAtomic(Map<String, byte[]> batch) throws IOException;
+
+    /**
+     * @return Single key writes of different keys can run at the same time
+     */
+    default boolean supportsParallelWrites() {
+        return false;
+    }
+
+    /**
+     * Force everything written so far to the disk
+     */
+    void sync() throws IOException;
+
+    /**
+     * Close the engine and delete all of its files
+     */
+    void destroy();
+
+    /**
+     * @return Bytes of all files of the engine
+     */
+    long diskUsage();
+
+    static void removeRecursive(File f) {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            if (files != null) {
+                for (File g : files) {
+                    removeRecursive(g);
+                }
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * Make the new, moved and deleted files of a folder durable,
+     * not every platform can sync a directory
+     */
+    static void syncFolder(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {}
+    }
+
+    static long sizeOf(File f) {
+        if (!f.isDirectory()) {
+            return f.length();
+        }
+
+        long size = 0;
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File g : files) {
+                size += sizeOf(g);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.Collection;
+
+/**
+ * A fixed set of monitors, keys with the same stripe share a monitor
+ */
+final class StripedLock {
+    private final Object[] stripes;
+
+    /**
+     * @param count Number of stripes, must be a power of two
+     */
+    StripedLock(int count) {
+        stripes = new Object[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    Object get(String key) {
+        return stripes[indexOf(key)];
+    }
+
+    /**
+     * Run the action while holding the stripes of all keys.
+     * Stripes are taken in index order, so two callers never deadlock.
+     */
+    void runLocked(Collection<String> keys, Runnable action) {
+        boolean[] used = new boolean[stripes.length];
+        for (String key : keys) {
+            used[indexOf(key)] = true;
+        }
+
+        runLocked(used, 0, action);
+    }
+
+    private void runLocked(boolean[] used, int from, Runnable action) {
+        for (int i = from; i < used.length; i++) {
+            if (used[i]) {
+                synchronized (stripes[i]) {
+                    runLocked(used, i + 1, action);
+                }
+                return;
+            }
+        }
+
+        action.run();
+    }
+
+    private int indexOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (stripes.length - 1);
+    }
+}
@@ -21,17 +21,37 @@ package org.frknkrc44.minidb;
 */
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Objects;
-import java.util.Scanner;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.Executors;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @SuppressWarnings({"ResultOfMethodCallIgnored", "unused"})
 public class SuperMiniDB {
@@ -40,10 +60,92 @@ public class SuperMiniDB {
             QUERY_RULE_ENDS_WITH = "EW",
             QUERY_RULE_EQUALS = "EQ",
             QUERY_RULE_CONTAINS = "CT";
-    private final HashMap<String, String> hm1 = new HashMap<>();
-    private boolean ready = false;
+    /** One file per key in smdb/dbName, the original layout */
+    public static final String STORAGE_ENGINE_LEGACY = "LEGACY";
+    /** Segmented append-only log in smdb-log/dbName */
+    public static final String STORAGE_ENGINE_LOG = "LOG";
+    /** Never force writes to the disk, leave it to the OS */
+    public static final String SYNC_NEVER = "NEVER";
+    /** Force writes to the disk at commit points: write-behind groups, batches, flush() and writeAll() */
+    public static final String SYNC_COMMIT = "COMMIT";
+    /** Force every write to the disk before it returns */
+    public static final String SYNC_ALWAYS = "ALWAYS";
+    /** Store every value as is */
+    public static final String COMPRESSION_NONE = "NONE";
+    /** Compress values with the fast LZ4 style codec */
+    public static final String COMPRESSION_LZ = "LZ";
+    /** Compress values with Deflate, smaller but slower */
+    public static final String COMPRESSION_DEFLATE = "DEFLATE";
+    /** Try the fast codec first and Deflate if it did poorly */
+    public static final String COMPRESSION_AUTO = "AUTO";
+    /** The key got a new value */
+    public static final String EVENT_PUT = "PUT";
+    /** The key is removed */
+    public static final String EVENT_REMOVE = "REMOVE";
+    /** The key, or the whole database if the key is null, is read from the storage again */
+    public static final String EVENT_RELOAD = "RELOAD";
+
+    /*  CONCURRENCY
+     *
+     *  Readers go straight to the concurrent table and never block.
+     *  Writers of the same key are ordered by a striped monitor, which
+     *  also covers the storage write, so the disk never ends up with
+     *  an older value than the memory.
+     *  Writers share the table lock while changing the table, and so
+     *  do key scans (getKeys, query). Whole table replacements
+     *  (readAll, putDatabaseDump, clearRAM) and applied WriteBatches
+     *  take it exclusively. So a scan never sees half of a replacement
+     *  or a batch, single key writes next to it may or may not be seen.
+     *  sortedKeys holds the same keys as the table in order, it is
+     *  changed together with the table under the same locks, so is
+     *  the optional queryIndex.
+     *  The write-behind flusher persists the value a key has when its
+     *  group is committed, a later write marks the key dirty again.
+     *  A commit holds the stripes of its group while it reads and
+     *  writes the values.
+     *  A WriteBatch holds the stripes of all its keys (in stripe order)
+     *  while it is persisted, then takes the table lock exclusively.
+     *  In lazy mode the table holds Stored values for persisted keys,
+     *  a committed value is swapped to a Stored one only if the table
+     *  still has the committed holder, so newer writes are never lost.
+     *  readAll and writeAll split their work over the bulk pool. Loading
+     *  fills a private table which is swapped in at the end, writing
+     *  takes the stripes of every key (or group of keys) it persists.
+     *  Key events are queued while the stripe of the key is held, so
+     *  they are in the order of the writes. Permanent writes and removals
+     *  with write-behind are announced by the commit of their group.
+     *  Off-heap values are freed when they leave the table, a reader
+     *  holding a freed one reads null and looks the key up again.
+     *  An expired value reads as missing, the timer wheel removes it
+     *  later with the stripes of its group of keys held.
+     */
+    private static final int WRITE_GROUP_SIZE = 512;
+    private static final long EXPIRY_TICK_MILLIS = 100;
+    private volatile ConcurrentHashMap<String, ValueHolder> hm1 = new ConcurrentHashMap<>();
+    private volatile ConcurrentSkipListSet<String> sortedKeys = new ConcurrentSkipListSet<>();
+    private volatile KeyQueryIndex queryIndex = null;
+    private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+    private final StripedLock keyLocks = new StripedLock(64);
+    private volatile CompletableFuture<Void> bulk = CompletableFuture.completedFuture(null);
+    private Executor asyncExecutor;
     private File folder;
+    private String storageEngine;
+    private boolean memoryMapped;
+    private String syncPolicy;
+    private ForkJoinPool bulkPool;
+    private volatile StorageEngine storage;
+    private WriteBehindFlusher flusher = null;
+    private ValueCache valueCache = null;
+    private DecodedCache decodedCache = null;
+    private SlabAllocator slabs = null;
+    private TimerWheel expiryWheel;
+    private volatile boolean expiring = false;
+    private KeyWatchers watchers;
+    private Metrics metrics;
+    private boolean timed;
+    private DBMXBean mbean = null;
     private BaseCipher cipher = null;
+    private Compressor compressor;
     private LogProvider logProvider = null;
 
     /**
@@ -91,8 +193,21 @@ public class SuperMiniDB {
      * @param provider Log provider
      */
     public SuperMiniDB(String dbName, File path, boolean notRead, boolean useAes, LogProvider provider) {
-        init(dbName, path, useAes, provider);
-        if (!notRead) {
+        this(dbName, path, new DBOptions()
+                .setNotRead(notRead)
+                .setUseAes(useAes)
+                .setLogProvider(provider));
+    }
+
+    /**
+     * Initialize the DB with the given options
+     * @param dbName Database name
+     * @param path Database path
+     * @param options Database options
+     */
+    public SuperMiniDB(String dbName, File path, DBOptions options) {
+        init(dbName, path, options);
+        if (!options.notRead) {
             readAll();
         }
     }
@@ -138,14 +253,16 @@ public class SuperMiniDB {
      * @param provider Log provider
      */
     public SuperMiniDB(String dbName, File path, Runnable onDBLoadFinished, boolean useAes, LogProvider provider) {
-        init(dbName, path, useAes, provider);
+        init(dbName, path, new DBOptions()
+                .setUseAes(useAes)
+                .setLogProvider(provider));
         readAllAsync(onDBLoadFinished);
     }
 
-    private void init(String dbName, File path, boolean useAes, LogProvider provider) {
-        logProvider = provider == null ? new DefaultLogProvider() : provider;
+    private void init(String dbName, File path, DBOptions options) {
+        logProvider = options.logProvider == null ? new DefaultLogProvider() : options.logProvider;
 
-        if (useAes) {
+        if (options.useAes) {
             try {
                 logProvider.onLog("Trying to init AESCipher...");
                 cipher = new AESCipher(dbName.getBytes());
@@ -163,400 +280,2085 @@ public class SuperMiniDB {
             }
         }
 
-        folder = new File(path + File.separator + "smdb" + File.separator + dbName);
-        if (!folder.exists()) folder.mkdirs();
-    }
+        compressor = new Compressor(options.compression, options.compressionThreshold,
+                options.compressionDictionary);
+        if (cipher != null && options.decodedCacheSize > 0) {
+            decodedCache = new DecodedCache(options.decodedCacheSize);
+        }
 
-    public final int getLength() {
-        return hm1.size();
-    }
+        watchers = new KeyWatchers(dbName, options.listenerExecutor, logProvider);
+        expiryWheel = new TimerWheel(dbName, EXPIRY_TICK_MILLIS, this::removeExpired, logProvider);
+        metrics = options.metrics;
+        timed = metrics != Metrics.NONE;
+        storageEngine = options.storageEngine;
+        memoryMapped = options.memoryMapped;
+        syncPolicy = options.syncPolicy;
+        asyncExecutor = options.asyncExecutor != null ? options.asyncExecutor : AsyncExecutors.shared();
+        bulkPool = options.bulkPool != null ? options.bulkPool : ForkJoinPool.commonPool();
+        if (options.queryIndex) {
+            queryIndex = new KeyQueryIndex(Collections.emptyList());
+        }
+        folder = getStorageFolder(path, dbName, storageEngine);
+        storage = openStorage(storageEngine, folder, logProvider, memoryMapped, syncPolicy);
+        if (options.offHeap) {
+            slabs = new SlabAllocator();
+        }
 
-    public final boolean isDBContainsKey(String key) {
-        return hm1.containsKey(key);
-    }
+        if (options.lazyLoad) {
+            valueCache = new ValueCache(key -> storage.read(key), options.valueCacheSize);
+        }
 
-    public final String[] getStringArray(String key, String[] def) {
-        String s = getString(key, null);
-        if (s != null) {
+        // Before the flusher thread, a failed registration leaves nothing running
+        if (options.registerMBean) {
             try {
-                return s.split(String.valueOf((char) 1));
-            } catch (Throwable ignored) {}
+                mbean = DBMXBean.register(this, dbName, metrics);
+            } catch (RuntimeException e) {
+                try {
+                    storage.close();
+                } catch (Throwable ignored) {}
+                throw e;
+            }
         }
 
-        return def;
+        if (options.writeBehind) {
+            flusher = new WriteBehindFlusher(dbName, this::commit, logProvider,
+                    options.flushBatchSize, options.flushDelayMillis);
+        }
     }
 
-    public final String getString(String key, String def) {
-        return isDBContainsKey(key) ? decode(hm1.get(key)) : def;
+    private static File getStorageFolder(File path, String dbName, String storageEngine) {
+        String root = STORAGE_ENGINE_LOG.equals(storageEngine) ? "smdb-log" : "smdb";
+        return new File(path + File.separator + root + File.separator + dbName);
     }
 
-    public final long getLong(String key, long def) {
-        String s = getString(key, String.valueOf(def));
-        try {
-            return Long.parseLong(s);
-        } catch (Throwable ignored) {
-            return def;
-        }
+    private static StorageEngine openStorage(String storageEngine, File folder, LogProvider logProvider,
+                                             boolean memoryMapped, String syncPolicy) {
+        return openStorage(storageEngine, folder, logProvider, memoryMapped, syncPolicy, false);
     }
 
-    public final byte getByte(String key, byte def) {
-        String s = getString(key, String.valueOf(def));
+    /**
+     * @param export The folder is only written to, its other files must stay as they are
+     */
+    private static StorageEngine openStorage(String storageEngine, File folder, LogProvider logProvider,
+                                             boolean memoryMapped, String syncPolicy, boolean export) {
         try {
-            return Byte.parseByte(s);
-        } catch (Throwable ignored) {
-            return def;
+            switch (storageEngine) {
+                case STORAGE_ENGINE_LEGACY:
+                    return new LegacyStorageEngine(folder, logProvider, syncPolicy, export);
+                case STORAGE_ENGINE_LOG:
+                    return new LogStorageEngine(folder, logProvider, memoryMapped, syncPolicy);
+                default:
+                    throw new RuntimeException("invalid storage engine: " + storageEngine);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
-    public final int getInteger(String key, int def) {
-        String s = getString(key, String.valueOf(def));
-        try {
-            return Integer.parseInt(s);
-        } catch (Throwable ignored) {
-            return def;
+    /**
+     * Move a database from a storage engine to another one.
+     * The database must not be open while migrating.
+     * @param dbName Database name
+     * @param path Database path
+     * @param fromEngine Current storage engine of the database
+     * @param toEngine Target storage engine
+     * @param provider Log provider
+     */
+    public static void migrateStorage(String dbName, File path, String fromEngine, String toEngine, LogProvider provider) {
+        if (fromEngine.equals(toEngine)) {
+            return;
         }
-    }
 
-    public final float getFloat(String key, float def) {
-        String s = getString(key, String.valueOf(def));
+        LogProvider logProvider = provider == null ? new DefaultLogProvider() : provider;
+        StorageEngine from = openStorage(fromEngine, getStorageFolder(path, dbName, fromEngine),
+                logProvider, false, SYNC_COMMIT);
         try {
-            return Float.parseFloat(s);
-        } catch (Throwable ignored) {
-            return def;
+            StorageEngine to = openStorage(toEngine, getStorageFolder(path, dbName, toEngine),
+                    logProvider, false, SYNC_COMMIT);
+            boolean done = false;
+            try {
+                logProvider.onLog("Migrating " + dbName + " from " + fromEngine + " to " + toEngine + "...");
+                from.load((key, value) -> {
+                    try {
+                        to.write(key, value.get());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                to.sync();
+                done = true;
+            } catch (IOException | UncheckedIOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                closeQuietly(to, logProvider);
+                // A half written target must not be taken for a database
+                if (!done) to.destroy();
+            }
+        } finally {
+            closeQuietly(from, logProvider);
         }
+
+        from.destroy();
     }
 
-    public final double getDouble(String key, double def) {
-        String s = getString(key, String.valueOf(def));
+    private static void closeQuietly(StorageEngine engine, LogProvider logProvider) {
         try {
-            return Double.parseDouble(s);
-        } catch (Throwable ignored) {
-            return def;
+            engine.close();
+        } catch (Throwable t) {
+            logProvider.onLog("Closing the storage failed: " + t);
         }
     }
 
-    public final boolean getBoolean(String key, boolean def) {
-        String s = getString(key, String.valueOf(def));
-        try {
-            return Boolean.parseBoolean(s);
-        } catch (Throwable ignored) {
-            return def;
+    /**
+     * Expired keys which are not removed yet don't count, counting
+     * them is a scan of the table once any key has a time to live
+     */
+    public final int getLength() {
+        if (!expiring) {
+            return hm1.size();
         }
-    }
 
-    public final void putStringArray(String key, String[] value) {
-        putStringArray(key, value, false);
-    }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (ValueHolder holder : hm1.values()) {
+            if (!Expiry.isExpired(expiresAtOf(holder), now)) {
+                count++;
+            }
+        }
 
-    public final void putStringArray(String key, String[] value, boolean permanent) {
-        StringBuilder stringBuilder = new StringBuilder();
+        return count;
+    }
 
-        for (String item : value)
-            stringBuilder.append(item).append((char) 1);
+    /**
+     * Build a preset compression dictionary from the current values.
+     * Pass it to DBOptions.setCompressionDictionary when the database is
+     * opened, values written with it can't be read without it.
+     * @param size Largest dictionary size, 16 to 32 KB is typical
+     * @return The dictionary
+     */
+    public final byte[] trainCompressionDictionary(int size) {
+        List<byte[]> samples = new ArrayList<>();
+        long budget = 100L * size;
+        for (Map.Entry<String, ValueHolder> entry : hm1.entrySet()) {
+            byte[] value = plainOf(entry.getKey(), entry.getValue());
+            if (value == null) continue;
+
+            samples.add(value);
+            budget -= value.length;
+            if (budget <= 0) break;
+        }
 
-        stringBuilder.delete(stringBuilder.length() - 1, stringBuilder.length());
-        putString(key, stringBuilder.toString(), permanent);
+        return Compressor.train(samples, size);
     }
 
-    public final void putString(String key, String value) {
-        putString(key, value, false);
-    }
+    /**
+     * Rough estimate of the heap used by the keys and values,
+     * it walks the whole table
+     */
+    public final long getMemoryUsage() {
+        long usage = 0;
+        for (Map.Entry<String, ValueHolder> entry : hm1.entrySet()) {
+            // Map node, String and holder headers, off-heap values count only these
+            usage += 96 + 2L * entry.getKey().length();
+            if (entry.getValue() instanceof ValueHolder.Heap) {
+                usage += 16 + entry.getValue().length();
+            }
+        }
 
-    public final void putString(String key, String value, boolean permanent) {
-        hm1.put(key, encode(value));
-        if (permanent) writeKey(key);
+        if (valueCache != null) usage += valueCache.stats().getSize();
+        if (decodedCache != null) usage += decodedCache.stats().getSize();
+        return usage;
     }
 
-    public final void putLong(String key, long value) {
-        putLong(key, value, false);
+    /**
+     * @return Bytes of the off-heap slabs, or 0 if off-heap values are disabled
+     */
+    public final long getOffHeapUsage() {
+        return slabs != null ? slabs.reservedBytes() : 0;
     }
 
-    public final void putLong(String key, long value, boolean permanent) {
-        putString(key, String.valueOf(value), permanent);
+    /**
+     * @return Bytes of all storage files of the database
+     */
+    public final long getDiskUsage() {
+        return storage.diskUsage();
     }
 
-    public final void putByte(String key, byte value) {
-        putByte(key, value, false);
-    }
+    /**
+     * In lazy mode expired keys count until a value
+     * with an expiry time is read
+     */
+    public final boolean isDBContainsKey(String key) {
+        if (!expiring) {
+            return hm1.containsKey(key);
+        }
 
-    public final void putByte(String key, byte value, boolean permanent) {
-        putString(key, String.valueOf(value), permanent);
+        return isLive(key, System.currentTimeMillis());
     }
 
-    public final void putInteger(String key, int value) {
-        putInteger(key, value, false);
+    public final String[] getStringArray(String key, String[] def) {
+        String s = getString(key, null);
+        if (s != null) {
+            try {
+                return s.split(String.valueOf((char) 1));
+            } catch (Throwable ignored) {}
+        }
+
+        return def;
     }
 
-    public final void putInteger(String key, int value, boolean permanent) {
-        putString(key, String.valueOf(value), permanent);
+    public final String getString(String key, String def) {
+        byte[] value = plainOf(key);
+        return value != null ? ValueCodec.decodeString(value) : def;
     }
 
-    public final void putFloat(String key, float value) {
-        putFloat(key, value, false);
+    /**
+     * @return Value bytes, the caller owns the returned array
+     */
+    public final byte[] getBytes(String key, byte[] def) {
+        byte[] value = plainOf(key);
+        if (value == null) {
+            return def;
+        }
+
+        // A fresh decryption can be handed out as is
+        return ValueCodec.decodeBytes(value, cipher != null && decodedCache == null);
     }
 
-    public final void putFloat(String key, float value, boolean permanent) {
-        putString(key, String.valueOf(value), permanent);
+    /**
+     * @return Read-only buffer of the value bytes, it doesn't copy
+     *         the stored value when the DB is not encrypted
+     */
+    public final ByteBuffer getByteBuffer(String key, ByteBuffer def) {
+        ByteBuffer buffer = null;
+        if (cipher == null) {
+            ValueHolder value = hm1.get(key);
+            buffer = value != null ? value.buffer() : null;
+        }
+
+        if (buffer == null || needsDecoding(buffer)) {
+            byte[] bytes = plainOf(key);
+            buffer = bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null;
+        }
+
+        if (buffer == null) {
+            return def;
+        }
+
+        if (buffer.remaining() < 2 || buffer.get(0) != ValueCodec.MARKER) {
+            return buffer;
+        }
+
+        byte tag = buffer.get(1);
+        if (tag == ValueCodec.TAG_STRING || tag == ValueCodec.TAG_BYTES) {
+            buffer.position(2);
+            return buffer.slice();
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return ByteBuffer.wrap(ValueCodec.decodeBytes(bytes, true)).asReadOnlyBuffer();
     }
 
-    public final void putDouble(String key, double value) {
-        putDouble(key, value, false);
+    /**
+     * @return The stored value is compressed or has an expiry time
+     */
+    private static boolean needsDecoding(ByteBuffer buffer) {
+        if (buffer.remaining() < 3 || buffer.get(buffer.position()) != ValueCodec.MARKER) {
+            return false;
+        }
+
+        byte tag = buffer.get(buffer.position() + 1);
+        return tag == ValueCodec.TAG_COMPRESSED || tag == ValueCodec.TAG_TTL;
     }
 
-    public final void putDouble(String key, double value, boolean permanent) {
-        putString(key, String.valueOf(value), permanent);
+    public final long getLong(String key, long def) {
+        ValueHolder holder = hm1.get(key);
+        if (isLiveCounter(holder, false)) {
+            return ((ValueHolder.Counter) holder).longValue();
+        }
+
+        byte[] value = plainOf(key);
+        return value != null ? ValueCodec.decodeLong(value, def) : def;
     }
 
-    public final void putBoolean(String key, boolean value) {
-        putBoolean(key, value, false);
+    public final byte getByte(String key, byte def) {
+        byte[] value = plainOf(key);
+        return value != null ? ValueCodec.decodeByte(value, def) : def;
     }
 
-    public final void putBoolean(String key, boolean value, boolean permanent) {
-        putString(key, String.valueOf(value), permanent);
+    public final int getInteger(String key, int def) {
+        byte[] value = plainOf(key);
+        return value != null ? ValueCodec.decodeInteger(value, def) : def;
     }
 
-    public final Map<String, String> getDatabaseDump() {
-        return hm1;
+    public final float getFloat(String key, float def) {
+        byte[] value = plainOf(key);
+        return value != null ? ValueCodec.decodeFloat(value, def) : def;
     }
 
-    public final void putDatabaseDump(Map<String, String> dump) {
-        hm1.clear();
-        hm1.putAll(dump);
+    public final double getDouble(String key, double def) {
+        ValueHolder holder = hm1.get(key);
+        if (isLiveCounter(holder, true)) {
+            return ((ValueHolder.Counter) holder).doubleValue();
+        }
+
+        byte[] value = plainOf(key);
+        return value != null ? ValueCodec.decodeDouble(value, def) : def;
     }
 
-    public final void removeKeyFromDB(String key) {
-        hm1.remove(key);
-        new File(folder + File.separator + key).delete();
+    public final boolean getBoolean(String key, boolean def) {
+        byte[] value = plainOf(key);
+        return value != null ? ValueCodec.decodeBoolean(value) : def;
     }
 
-    public final void removeDB() {
-        hm1.clear();
-        removeRecursive(folder);
+    /**
+     * @return Plain value of the key, callers must not modify it,
+     *         or null if it doesn't exist
+     */
+    private byte[] plainOf(String key) {
+        long start = startTimer();
+        byte[] out;
+        while (true) {
+            ValueHolder value = hm1.get(key);
+            out = value != null ? plainOf(key, value) : null;
+            // An off-heap value reads as null once it is replaced, read the new one
+            if (out != null || value == null || hm1.get(key) == value) break;
+        }
+        stopTimer(Metrics.GET, start);
+        return out;
     }
 
-    private void removeRecursive(File f) {
-        if (f.isDirectory()) {
-            File[] files = f.listFiles();
-            if (files != null) {
-                for (File g : files) {
-                    removeRecursive(g);
-                }
+    private byte[] plainOf(String key, ValueHolder holder) {
+        if (holder instanceof ValueHolder.Counter) {
+            ValueHolder.Counter counter = (ValueHolder.Counter) holder;
+            if (Expiry.isExpired(counter.expiresAt, System.currentTimeMillis())) {
+                return null;
             }
+
+            // Changes in place, so it never goes to the decoded cache
+            return counter.plain();
         }
-        f.delete();
-    }
 
-    public final void clearRAM() {
-        hm1.clear();
-    }
+        if (decodedCache != null) {
+            byte[] cached = decodedCache.get(key, holder);
+            if (cached != null) {
+                return cached;
+            }
+        }
 
-    public final boolean isRAMClean() {
-        return hm1.isEmpty();
-    }
+        byte[] value = holder.get();
+        if (value == null) {
+            return null;
+        }
 
-    public final void exportToDir(File dir) {
-        if (dir.isDirectory()) {
-            writeAll(dir);
-        } else {
-            throw new RuntimeException(dir + " is not a directory");
+        if (Expiry.hasExpiry(value)) {
+            long expiresAt = Expiry.expiresAt(value);
+            if (Expiry.isExpired(expiresAt, System.currentTimeMillis())) {
+                // Lazy mode finds these only here
+                expiring = true;
+                retime(key);
+                return null;
+            }
+
+            // Not cached, the decoded cache doesn't check expiry times
+            return plain(Expiry.unwrap(value));
+        }
+
+        byte[] out = plain(value);
+        if (decodedCache != null) {
+            decodedCache.put(key, holder, out);
         }
+
+        return out;
     }
 
-    public final void refresh() {
-        writeAll();
-        readAll();
+    /**
+     * Plain value of a holder taken from the table earlier. An off-heap
+     * holder which is replaced meanwhile gives the current value instead.
+     */
+    private byte[] snapshotPlainOf(String key, ValueHolder holder) {
+        byte[] out = plainOf(key, holder);
+        return out == null && holder instanceof ValueHolder.OffHeap ? plainOf(key) : out;
     }
 
-    public void writeKey(String key) {
-        writeKey(folder, key);
+    public final void putStringArray(String key, String[] value) {
+        putStringArray(key, value, false);
     }
 
-    private void writeKey(File dir, String key) {
-        FileOutputStream os = null;
+    public final void putStringArray(String key, String[] value, boolean permanent) {
+        putStringArray(key, value, permanent, 0);
+    }
 
-        try {
-            key = getValidKey(key);
+    public final void putStringArray(String key, String[] value, boolean permanent, long ttlMillis) {
+        StringBuilder stringBuilder = new StringBuilder();
 
-            if (!key.isEmpty()) {
-                File tf = new File(dir + File.separator + key);
-                os = new FileOutputStream(tf);
-                os.write(hm1.get(key).getBytes());
-                os.flush();
-            }
-        } catch (Throwable ignored) {}
+        for (String item : value)
+            stringBuilder.append(item).append((char) 1);
 
-        try {
-            if (os != null) {
-                os.close();
-            }
-        } catch (Throwable ignored) {}
+        stringBuilder.delete(stringBuilder.length() - 1, stringBuilder.length());
+        putString(key, stringBuilder.toString(), permanent, ttlMillis);
     }
 
-    public void writeAll() {
-        writeAll(folder);
+    public final void putString(String key, String value) {
+        putString(key, value, false);
     }
 
-    private void writeAll(File dir) {
-        for (String key : getKeys()) {
-            writeKey(dir, key);
-        }
+    public final void putString(String key, String value, boolean permanent) {
+        putString(key, value, permanent, 0);
     }
 
-    public void writeAllAsync(Runnable onFinished) {
-        Executors.newSingleThreadExecutor().execute(() -> {
-            synchronized (SuperMiniDB.this) {
-                ready = false;
-                writeAll();
-                ready = true;
-                onFinished.run();
-            }
-        });
+    /**
+     * Every putX method has an overload like this one
+     * @param ttlMillis Time to live, the key expires after it. 0 means
+     *                  never, as in the overloads without it.
+     */
+    public final void putString(String key, String value, boolean permanent, long ttlMillis) {
+        putEncoded(key, encode(value), permanent, ttlMillis);
     }
 
-    private String getValidKey(String key) {
-        if (key == null) {
-            return "";
+    private void putEncoded(String key, byte[] encoded, boolean permanent, long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new RuntimeException("ttlMillis must not be negative");
         }
 
-        key = key.trim();
-
-        if (key.length() > 128) {
-            String key1 = key.substring(0, 64);
-            key1 += key.substring(key.length() - 64);
-            key = key1;
+        if (ttlMillis == 0) {
+            putValue(key, new ValueHolder.Heap(encoded), permanent);
+            return;
         }
 
-        return key;
+        // The table schedules it, see putToTable
+        expiring = true;
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        putValue(key, new ValueHolder.Heap(Expiry.wrap(encoded, expiresAt)), permanent);
     }
 
-    public final void readKey(String key) {
-        try {
-            key = getValidKey(key);
-
-            parseValues(new File(folder + File.separator + key));
-        } catch (Throwable ignored) {}
-    }
+    private void putValue(String key, ValueHolder value, boolean permanent) {
+        long start = startTimer();
+        synchronized (keyLocks.get(key)) {
+            tableLock.readLock().lock();
+            try {
+                putToTable(key, value);
+            } finally {
+                tableLock.readLock().unlock();
+            }
 
-    public void readAll() {
-        hm1.clear();
-        try {
-            if (folder.exists()) {
-                for (File f : Objects.requireNonNull(folder.listFiles())) {
-                    parseValues(f);
+            if (permanent && flusher != null) {
+                flusher.markDirty(key);
+            } else {
+                if (permanent) {
+                    writeKey(key);
                 }
-            } else folder.mkdirs();
-        } catch (Throwable ignored) {}
-    }
 
-    public void readAllAsync(Runnable onFinished) {
-        Executors.newSingleThreadExecutor().execute(() -> {
-            synchronized (SuperMiniDB.this) {
-                ready = false;
-                readAll();
-                ready = true;
-                onFinished.run();
+                watchers.emit(EVENT_PUT, key);
             }
-        });
+        }
+        stopTimer(Metrics.PUT, start);
     }
 
-    public final void refreshKey(String key) {
-        writeKey(key);
-        readKey(key);
+    /**
+     * Callers hold the stripe of the key and the table lock
+     */
+    private void putToTable(String key, ValueHolder value) {
+        ValueHolder old = hm1.put(key, offHeap(value));
+        if (decodedCache != null) decodedCache.invalidate(key);
+        if (old == null) {
+            sortedKeys.add(key);
+            if (queryIndex != null) queryIndex.add(key);
+        } else {
+            release(old);
+        }
+
+        if (expiring) retime(key);
+    }
+
+    /**
+     * @return The value moved to the off-heap slabs if they are enabled
+     */
+    private ValueHolder offHeap(ValueHolder value) {
+        if (slabs == null || !(value instanceof ValueHolder.Heap)) {
+            return value;
+        }
+
+        ValueHolder.OffHeap moved = slabs.allocate(value.get());
+        return moved != null ? moved : value;
     }
 
-    private void parseValues(File f) throws FileNotFoundException {
-        StringBuilder sq = new StringBuilder();
-        Scanner sc = new Scanner(f);
-        while (sc.hasNext()) sq.append(sc.nextLine());
-        sc.close();
-        hm1.put(f.getName(), sq.toString());
+    /**
+     * Give back the cache or slab space of a holder which left the table
+     */
+    private void release(ValueHolder old) {
+        if (old instanceof ValueHolder.Stored) {
+            valueCache.discard((ValueHolder.Stored) old);
+        } else if (slabs != null) {
+            slabs.free(old);
+        }
     }
 
-    private String encode(String in) {
-        if (cipher == null) return in;
+    /**
+     * Callers hold the stripe of the key and the table lock
+     */
+    private void removeFromTable(String key) {
+        ValueHolder old = hm1.remove(key);
+        if (decodedCache != null) decodedCache.invalidate(key);
+        if (old != null) {
+            sortedKeys.remove(key);
+            if (queryIndex != null) queryIndex.remove(key);
+            release(old);
+        }
 
-        return cipher.encodeStr(in);
+        if (expiring) expiryWheel.schedule(key, 0);
     }
 
-    private String decode(String in) {
-        if (cipher == null) return in;
+    public final void putBytes(String key, byte[] value) {
+        putBytes(key, value, false);
+    }
 
-        return cipher.decodeStr(in);
+    public final void putBytes(String key, byte[] value, boolean permanent) {
+        putBytes(key, value, permanent, 0);
     }
 
-    public String[] getKeys() {
-        return getKeys(false);
+    public final void putBytes(String key, byte[] value, boolean permanent, long ttlMillis) {
+        putEncoded(key, seal(ValueCodec.encodeBytes(value, 0, value.length)), permanent, ttlMillis);
     }
 
-    public String[] getKeys(boolean descending) {
-        return getKeys(false, descending);
+    public final void putByteBuffer(String key, ByteBuffer value) {
+        putByteBuffer(key, value, false);
     }
 
-    public String[] getKeys(boolean sort, boolean descending) {
-        Set<String> keySet = hm1.keySet();
-        String[] ref = new String[0];
+    /**
+     * Store the remaining bytes of the buffer, its position is not changed
+     */
+    public final void putByteBuffer(String key, ByteBuffer value, boolean permanent) {
+        putByteBuffer(key, value, permanent, 0);
+    }
 
-        if (!sort) {
-            return keySet.toArray(ref);
+    public final void putByteBuffer(String key, ByteBuffer value, boolean permanent, long ttlMillis) {
+        byte[] encoded;
+        if (value.hasRemaining() && value.get(value.position()) == ValueCodec.MARKER) {
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+            encoded = seal(ValueCodec.encodeBytes(bytes, 0, bytes.length));
+        } else if (value.hasArray() && compressor.skips(value.remaining())) {
+            int offset = value.arrayOffset() + value.position();
+            encoded = cipher == null
+                    ? Arrays.copyOfRange(value.array(), offset, offset + value.remaining())
+                    : cipher.encode(value.array(), offset, value.remaining());
+        } else {
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+            encoded = seal(bytes);
         }
 
-        TreeSet<String> treeSet = new TreeSet<>(keySet);
-        return descending
-                ? treeSet.descendingSet().toArray(ref)
-                : treeSet.toArray(ref);
+        putEncoded(key, encoded, permanent, ttlMillis);
     }
 
-    /*	DB QUERY
-     *
-     * 	SW=xxx key starts with
-     * 	EW=xxx key ends with
+    public final void putLong(String key, long value) {
+        putLong(key, value, false);
+    }
+
+    public final void putLong(String key, long value, boolean permanent) {
+        putLong(key, value, permanent, 0);
+    }
+
+    public final void putLong(String key, long value, boolean permanent, long ttlMillis) {
+        putEncoded(key, seal(ValueCodec.encodeLong(value)), permanent, ttlMillis);
+    }
+
+    public final void putByte(String key, byte value) {
+        putByte(key, value, false);
+    }
+
+    public final void putByte(String key, byte value, boolean permanent) {
+        putByte(key, value, permanent, 0);
+    }
+
+    public final void putByte(String key, byte value, boolean permanent, long ttlMillis) {
+        putEncoded(key, seal(ValueCodec.encodeByte(value)), permanent, ttlMillis);
+    }
+
+    public final void putInteger(String key, int value) {
+        putInteger(key, value, false);
+    }
+
+    public final void putInteger(String key, int value, boolean permanent) {
+        putInteger(key, value, permanent, 0);
+    }
+
+    public final void putInteger(String key, int value, boolean permanent, long ttlMillis) {
+        putEncoded(key, seal(ValueCodec.encodeInteger(value)), permanent, ttlMillis);
+    }
+
+    public final void putFloat(String key, float value) {
+        putFloat(key, value, false);
+    }
+
+    public final void putFloat(String key, float value, boolean permanent) {
+        putFloat(key, value, permanent, 0);
+    }
+
+    public final void putFloat(String key, float value, boolean permanent, long ttlMillis) {
+        putEncoded(key, seal(ValueCodec.encodeFloat(value)), permanent, ttlMillis);
+    }
+
+    public final void putDouble(String key, double value) {
+        putDouble(key, value, false);
+    }
+
+    public final void putDouble(String key, double value, boolean permanent) {
+        putDouble(key, value, permanent, 0);
+    }
+
+    public final void putDouble(String key, double value, boolean permanent, long ttlMillis) {
+        putEncoded(key, seal(ValueCodec.encodeDouble(value)), permanent, ttlMillis);
+    }
+
+    public final void putBoolean(String key, boolean value) {
+        putBoolean(key, value, false);
+    }
+
+    public final void putBoolean(String key, boolean value, boolean permanent) {
+        putBoolean(key, value, permanent, 0);
+    }
+
+    public final void putBoolean(String key, boolean value, boolean permanent, long ttlMillis) {
+        putEncoded(key, seal(ValueCodec.encodeBoolean(value)), permanent, ttlMillis);
+    }
+
+    /**
+     * @return A copy of the encoded database content, every char
+     *         of a value is one stored byte (ISO-8859-1)
+     */
+    public final Map<String, String> getDatabaseDump() {
+        Map<String, String> dump = new HashMap<>();
+        for (Map.Entry<String, ValueHolder> entry : snapshot().entrySet()) {
+            ValueHolder holder = entry.getValue();
+            byte[] value = holder.get();
+            if (value == null && holder instanceof ValueHolder.OffHeap) {
+                holder = hm1.get(entry.getKey());
+                value = holder != null ? holder.get() : null;
+            }
+
+            if (value != null) {
+                dump.put(entry.getKey(), new String(value, StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        return dump;
+    }
+
+    public final void putDatabaseDump(Map<String, String> dump) {
+        ConcurrentHashMap<String, ValueHolder> table = new ConcurrentHashMap<>();
+        for (Map.Entry<String, String> entry : dump.entrySet()) {
+            ValueHolder holder = new ValueHolder.Heap(entry.getValue().getBytes(StandardCharsets.ISO_8859_1));
+            scheduleLoaded(entry.getKey(), holder);
+            table.put(entry.getKey(), offHeap(holder));
+        }
+
+        replaceTable(table);
+    }
+
+    public final void removeKeyFromDB(String key) {
+        synchronized (keyLocks.get(key)) {
+            tableLock.readLock().lock();
+            try {
+                removeFromTable(key);
+            } finally {
+                tableLock.readLock().unlock();
+            }
+
+            if (flusher != null) {
+                flusher.markDirty(key);
+                return;
+            }
+
+            try {
+                storage.remove(key);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            watchers.emit(EVENT_REMOVE, key);
+        }
+    }
+
+    /**
+     * Apply a batch at once and persist it with a single commit, after
+     * a crash either all of it or none of it is stored. Key snapshots
+     * (getKeys, query, getDatabaseDump) see all of it or none of it,
+     * single key reads may see a part of it while it is applied.
+     * @param batch Batch to apply, it is not cleared
+     */
+    public final void write(WriteBatch batch) {
+        Map<String, byte[]> sealed = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : batch.ops().entrySet()) {
+            sealed.put(entry.getKey(), entry.getValue() != null ? seal(entry.getValue()) : null);
+        }
+
+        if (sealed.isEmpty()) {
+            return;
+        }
+
+        keyLocks.runLocked(sealed.keySet(), () -> {
+            // Storage first, a failed batch leaves the memory as it was
+            try {
+                storage.writeAtomic(sealed);
+                storage.sync();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            tableLock.writeLock().lock();
+            try {
+                for (Map.Entry<String, byte[]> entry : sealed.entrySet()) {
+                    String key = entry.getKey();
+                    byte[] value = entry.getValue();
+                    if (value == null) {
+                        removeFromTable(key);
+                    } else {
+                        putToTable(key, valueCache != null
+                                ? valueCache.stored(key, value)
+                                : new ValueHolder.Heap(value));
+                    }
+                }
+            } finally {
+                tableLock.writeLock().unlock();
+            }
+
+            for (Map.Entry<String, byte[]> entry : sealed.entrySet()) {
+                watchers.emit(entry.getValue() != null ? EVENT_PUT : EVENT_REMOVE, entry.getKey());
+            }
+        });
+    }
+
+    /*  ATOMIC UPDATES
+     *
+     *  Counters live in Counter holders and are added to in place, with
+     *  a CAS and without encoding. The other updates swap the holder they
+     *  read for the new one. Every update holds the stripe of the key
+     *  like a put while it changes and persists the key, so its write and
+     *  event are in order with the other writers of the key.
+     *  The mappings of computeIfAbsent and merge run before the stripe is
+     *  taken, so they may use the database. Their result is stored only
+     *  if the key still has the value it was computed from.
+     *  Permanent updates go through write-behind like puts when it is
+     *  on, a counter which is updated many times in a flush is written
+     *  once.
+     *  Counters keep the expiry time of the value they replace, the
+     *  other updates store values which never expire.
+     */
+
+    public final long incrementAndGet(String key) {
+        return addAndGet(key, 1L, false);
+    }
+
+    public final long incrementAndGet(String key, boolean permanent) {
+        return addAndGet(key, 1L, permanent);
+    }
+
+    public final long addAndGet(String key, long delta) {
+        return addAndGet(key, delta, false);
+    }
+
+    /**
+     * Add to a long value atomically, a missing or
+     * unparsable value counts as 0
+     * @return The new value
+     */
+    public final long addAndGet(String key, long delta, boolean permanent) {
+        synchronized (keyLocks.get(key)) {
+            long out;
+            while (true) {
+                ValueHolder holder = hm1.get(key);
+                if (isLiveCounter(holder, false)) {
+                    out = ((ValueHolder.Counter) holder).add(delta);
+                    break;
+                }
+
+                long current = holder != null ? ValueCodec.decodeLong(plainOrEmpty(key, holder), 0) : 0;
+                out = current + delta;
+                if (swapHolder(key, holder, new ValueHolder.Counter(false, out, this::seal, liveExpiryOf(holder)))) {
+                    break;
+                }
+            }
+
+            persistUpdate(key, permanent, EVENT_PUT);
+            return out;
+        }
+    }
+
+    public final double addAndGetDouble(String key, double delta) {
+        return addAndGetDouble(key, delta, false);
+    }
+
+    /**
+     * Add to a double value atomically, a missing or
+     * unparsable value counts as 0
+     * @return The new value
+     */
+    public final double addAndGetDouble(String key, double delta, boolean permanent) {
+        synchronized (keyLocks.get(key)) {
+            double out;
+            while (true) {
+                ValueHolder holder = hm1.get(key);
+                if (isLiveCounter(holder, true)) {
+                    out = ((ValueHolder.Counter) holder).add(delta);
+                    break;
+                }
+
+                double current = holder != null ? ValueCodec.decodeDouble(plainOrEmpty(key, holder), 0) : 0;
+                out = current + delta;
+                if (swapHolder(key, holder, new ValueHolder.Counter(true, Double.doubleToRawLongBits(out),
+                        this::seal, liveExpiryOf(holder)))) {
+                    break;
+                }
+            }
+
+            persistUpdate(key, permanent, EVENT_PUT);
+            return out;
+        }
+    }
+
+    public final boolean compareAndSet(String key, String expected, String update) {
+        return compareAndSet(key, expected, update, false);
+    }
+
+    /**
+     * Set the value only if the current one equals the expected one
+     * @param expected Expected value, null if the key must not exist
+     * @param update New value
+     * @return The value is set
+     */
+    public final boolean compareAndSet(String key, String expected, String update, boolean permanent) {
+        byte[] plain = expected != null ? ValueCodec.encodeString(expected) : null;
+        return compareAndSetPlain(key, plain, ValueCodec.encodeString(update), permanent);
+    }
+
+    public final boolean compareAndSetBytes(String key, byte[] expected, byte[] update) {
+        return compareAndSetBytes(key, expected, update, false);
+    }
+
+    /**
+     * Set the value only if the current bytes equal the expected ones
+     * @param expected Expected bytes, null if the key must not exist
+     * @param update New bytes
+     * @return The value is set
+     */
+    public final boolean compareAndSetBytes(String key, byte[] expected, byte[] update, boolean permanent) {
+        byte[] plain = expected != null ? ValueCodec.encodeBytes(expected, 0, expected.length) : null;
+        return compareAndSetPlain(key, plain, ValueCodec.encodeBytes(update, 0, update.length), permanent);
+    }
+
+    private boolean compareAndSetPlain(String key, byte[] expected, byte[] update, boolean permanent) {
+        ValueHolder next = new ValueHolder.Heap(seal(update));
+        synchronized (keyLocks.get(key)) {
+            while (true) {
+                ValueHolder holder = hm1.get(key);
+                if (holder == null ? expected != null : !Arrays.equals(plainOrEmpty(key, holder), expected)) {
+                    if (holder == null || hm1.get(key) == holder) {
+                        return false;
+                    }
+
+                    // Replaced while it was decoded, compare the new value
+                    continue;
+                }
+
+                if (swapHolder(key, holder, next)) {
+                    persistUpdate(key, permanent, EVENT_PUT);
+                    return true;
+                }
+            }
+        }
+    }
+
+    public final String computeIfAbsent(String key, Function<String, String> mapping) {
+        return computeIfAbsent(key, mapping, false);
+    }
+
+    /**
+     * Put the mapped value if the key doesn't exist. The mapping runs
+     * without any lock held, so it may use the database. If the key is
+     * added meanwhile, the mapped value is dropped.
+     * @param mapping Gets the key, a null result puts nothing
+     * @return The current value, or the new one
+     */
+    public final String computeIfAbsent(String key, Function<String, String> mapping, boolean permanent) {
+        String current = getString(key, null);
+        if (current != null) {
+            return current;
+        }
+
+        String value = mapping.apply(key);
+        if (value == null) {
+            return getString(key, null);
+        }
+
+        synchronized (keyLocks.get(key)) {
+            current = getString(key, null);
+            if (current != null) {
+                return current;
+            }
+
+            putString(key, value, permanent);
+            return value;
+        }
+    }
+
+    public final String merge(String key, String value, BiFunction<String, String, String> remapping) {
+        return merge(key, value, remapping, false);
+    }
+
+    /**
+     * Put the value if the key doesn't exist, otherwise replace it with
+     * the result of the remapping. The remapping runs without any lock
+     * held, so it may use the database, and runs again when the key is
+     * written at the same time.
+     * @param remapping Gets the current and the given value, a null result removes the key
+     * @return The new value, or null if the key is removed
+     */
+    public final String merge(String key, String value, BiFunction<String, String, String> remapping,
+                              boolean permanent) {
+        while (true) {
+            ValueHolder holder = hm1.get(key);
+            byte[] plain = holder != null ? plainOf(key, holder) : null;
+            // A missing or expired value takes the given one
+            String merged = plain != null ? remapping.apply(ValueCodec.decodeString(plain), value) : value;
+
+            synchronized (keyLocks.get(key)) {
+                if (hm1.get(key) != holder) {
+                    continue;
+                }
+
+                if (merged == null) {
+                    removeKeyFromDB(key);
+                    return null;
+                }
+
+                if (swapHolder(key, holder, new ValueHolder.Heap(encode(merged)))) {
+                    persistUpdate(key, permanent, EVENT_PUT);
+                    return merged;
+                }
+            }
+        }
+    }
+
+    private static boolean isLiveCounter(ValueHolder holder, boolean floating) {
+        return holder instanceof ValueHolder.Counter
+                && ((ValueHolder.Counter) holder).floating == floating
+                && !Expiry.isExpired(((ValueHolder.Counter) holder).expiresAt, System.currentTimeMillis());
+    }
+
+    /**
+     * @return Expiry time of the holder, 0 if it has none or it is already expired
+     */
+    private long liveExpiryOf(ValueHolder holder) {
+        long expiresAt = holder != null ? expiresAtOf(holder) : 0;
+        return Expiry.isExpired(expiresAt, System.currentTimeMillis()) ? 0 : expiresAt;
+    }
+
+    /**
+     * @return Plain value of the holder, empty if it has none anymore
+     */
+    private byte[] plainOrEmpty(String key, ValueHolder holder) {
+        byte[] plain = plainOf(key, holder);
+        return plain != null ? plain : new byte[0];
+    }
+
+    /**
+     * Replace the holder of the key if the table still has the expected
+     * one, a null expected holder means the key must be absent. The
+     * caller holds the stripe of the key, the table can still be replaced.
+     */
+    private boolean swapHolder(String key, ValueHolder expected, ValueHolder update) {
+        if (expected == null) {
+            if (hm1.containsKey(key)) {
+                return false;
+            }
+
+            tableLock.readLock().lock();
+            try {
+                putToTable(key, update);
+            } finally {
+                tableLock.readLock().unlock();
+            }
+            return true;
+        }
+
+        ValueHolder moved = offHeap(update);
+        if (!hm1.replace(key, expected, moved)) {
+            if (moved != update) slabs.free(moved);
+            return false;
+        }
+
+        if (decodedCache != null) decodedCache.invalidate(key);
+        release(expected);
+        if (expiring) retime(key);
+        return true;
+    }
+
+    private void persistUpdate(String key, boolean permanent, String event) {
+        if (permanent && flusher != null) {
+            flusher.markDirty(key);
+            return;
+        }
+
+        if (permanent) {
+            writeKey(key);
+        }
+
+        watchers.emit(event, key);
+    }
+
+    /*  EXPIRY
+     *
+     *  A value with a time to live is stored with its expiry time in
+     *  front of the encoded value, see Expiry. Reads check it, and the
+     *  timer wheel is told about every expiry time it sees. The wheel
+     *  hands over the due keys in groups, which are removed from the
+     *  memory and the storage at once if they are still expired.
+     */
+
+    public final boolean expire(String key, long ttlMillis) {
+        return expire(key, ttlMillis, false);
+    }
+
+    /**
+     * Set the time to live of an existing key
+     * @param ttlMillis Time to live, 0 to never expire
+     * @return The key exists and is not expired
+     */
+    public final boolean expire(String key, long ttlMillis, boolean permanent) {
+        if (ttlMillis < 0) {
+            throw new RuntimeException("ttlMillis must not be negative");
+        }
+
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis > 0 ? now + ttlMillis : 0;
+        if (expiresAt != 0) {
+            expiring = true;
+        }
+
+        synchronized (keyLocks.get(key)) {
+            while (true) {
+                ValueHolder holder = hm1.get(key);
+                if (holder == null) {
+                    return false;
+                }
+
+                if (holder instanceof ValueHolder.Counter) {
+                    ValueHolder.Counter counter = (ValueHolder.Counter) holder;
+                    if (Expiry.isExpired(counter.expiresAt, now)) {
+                        return false;
+                    }
+
+                    counter.expiresAt = expiresAt;
+                    if (expiring) retime(key);
+                    break;
+                }
+
+                byte[] value = holder.get();
+                if (value == null) {
+                    if (hm1.get(key) == holder) return false;
+                    continue;
+                }
+
+                if (Expiry.isExpired(Expiry.expiresAt(value), now)) {
+                    return false;
+                }
+
+                byte[] encoded = Expiry.unwrap(value);
+                ValueHolder update = new ValueHolder.Heap(expiresAt != 0 ? Expiry.wrap(encoded, expiresAt) : encoded);
+                if (swapHolder(key, holder, update)) {
+                    break;
+                }
+            }
+
+            persistUpdate(key, permanent, EVENT_PUT);
+            return true;
+        }
+    }
+
+    private void scheduleExpiry(String key, long expiresAt) {
+        expiring = true;
+        expiryWheel.schedule(key, expiresAt);
+    }
+
+    /**
+     * Schedule the key with the expiry time of its current value, or
+     * cancel it. Called after every change of the key in the table, the
+     * wheel reads the value under its lock so the last change wins.
+     */
+    private void retime(String key) {
+        expiryWheel.reschedule(key, () -> {
+            ValueHolder holder = hm1.get(key);
+            return holder != null ? expiresAtOf(holder) : 0;
+        });
+    }
+
+    /**
+     * @return The key has a value which is not expired
+     */
+    private boolean isLive(String key, long now) {
+        ValueHolder holder = hm1.get(key);
+        return holder != null && !Expiry.isExpired(expiresAtOf(holder), now);
+    }
+
+    /**
+     * Schedule a value which is loaded from the storage, without copying it
+     */
+    private void scheduleLoaded(String key, ValueHolder holder) {
+        ByteBuffer buffer = holder.buffer();
+        long expiresAt = buffer != null ? Expiry.expiresAt(buffer) : 0;
+        if (expiresAt != 0) {
+            scheduleExpiry(key, expiresAt);
+        }
+    }
+
+    private long expiresAtOf(ValueHolder holder) {
+        if (holder instanceof ValueHolder.Counter) {
+            return ((ValueHolder.Counter) holder).expiresAt;
+        }
+
+        byte[] value = holder.get();
+        return value != null ? Expiry.expiresAt(value) : 0;
+    }
+
+    /**
+     * Remove the keys which are still expired, in groups
+     */
+    private void removeExpired(List<String> keys) {
+        for (int from = 0; from < keys.size(); from += WRITE_GROUP_SIZE) {
+            List<String> group = new ArrayList<>(new LinkedHashSet<>(
+                    keys.subList(from, Math.min(keys.size(), from + WRITE_GROUP_SIZE))));
+            Map<String, byte[]> removed = new LinkedHashMap<>();
+            keyLocks.runLocked(group, () -> {
+                long now = System.currentTimeMillis();
+                tableLock.readLock().lock();
+                try {
+                    for (String key : group) {
+                        ValueHolder holder = hm1.get(key);
+                        if (holder != null && Expiry.isExpired(expiresAtOf(holder), now)) {
+                            removeFromTable(key);
+                            removed.put(key, null);
+                        }
+                    }
+                } finally {
+                    tableLock.readLock().unlock();
+                }
+
+                try {
+                    if (!removed.isEmpty()) storage.write(removed);
+                } catch (IOException e) {
+                    // They are expired on the next read after reopening anyway
+                    logProvider.onLog("Removing expired keys from the storage failed: " + e);
+                }
+            });
+
+            for (String key : removed.keySet()) {
+                watchers.emit(EVENT_REMOVE, key);
+            }
+        }
+    }
+
+    public final void removeDB() {
+        tableLock.writeLock().lock();
+        try {
+            if (slabs != null) slabs.freeAll(hm1.values());
+            hm1.clear();
+            sortedKeys.clear();
+            if (queryIndex != null) queryIndex.clear();
+            if (valueCache != null) valueCache.clear();
+            if (decodedCache != null) decodedCache.clear();
+            storage.destroy();
+            storage = openStorage(storageEngine, folder, logProvider, memoryMapped, syncPolicy);
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+
+        watchers.reload();
+    }
+
+    private void replaceTable(ConcurrentHashMap<String, ValueHolder> table) {
+        ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>(table.keySet());
+        KeyQueryIndex index = queryIndex != null ? new KeyQueryIndex(table.keySet()) : null;
+
+        ConcurrentHashMap<String, ValueHolder> old;
+        tableLock.writeLock().lock();
+        try {
+            if (valueCache != null) valueCache.clear();
+            if (decodedCache != null) decodedCache.clear();
+            old = hm1;
+            hm1 = table;
+            sortedKeys = keys;
+            queryIndex = index;
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+
+        if (slabs != null) slabs.freeAll(old.values());
+
+        watchers.reload();
+    }
+
+    /**
+     * @return A point-in-time copy of the table
+     */
+    private Map<String, ValueHolder> snapshot() {
+        tableLock.readLock().lock();
+        try {
+            return new HashMap<>(hm1);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Commit the pending writes and close the storage files,
+     * the instance must not be used after that
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.close();
+        }
+
+        watchers.close();
+        expiryWheel.close();
+        if (mbean != null) {
+            mbean.unregister();
+        }
+
+        try {
+            storage.close();
+        } catch (Throwable t) {
+            logProvider.onLog("Closing the storage failed: " + t);
+        }
+
+        if (slabs != null) {
+            slabs.close();
+        }
+    }
+
+    /**
+     * Durability barrier for the permanent writes and removals
+     * @return A future which completes when every permanent write made
+     *         before this call is committed and synced to the disk
+     */
+    public CompletableFuture<Void> flush() {
+        if (flusher != null) {
+            return flusher.flush();
+        }
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            storage.sync();
+            future.complete(null);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+
+        return future;
+    }
+
+    /**
+     * Write the current values of a group of keys with a single sync.
+     * The stripes of the group are held from reading the values until
+     * they are written, like every other storage write.
+     */
+    private void commit(Set<String> keys) throws IOException {
+        try {
+            keyLocks.runLocked(keys, () -> {
+                try {
+                    commitLocked(keys);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void commitLocked(Set<String> keys) throws IOException {
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        Map<String, ValueHolder> holders = new HashMap<>();
+        for (String key : keys) {
+            ValueHolder value = hm1.get(key);
+            if (value instanceof ValueHolder.Stored) {
+                // Already persisted
+                continue;
+            }
+
+            byte[] bytes = value != null ? value.get() : null;
+            if (value != null && bytes == null) {
+                // Replaced meanwhile, the newer value is committed later
+                continue;
+            }
+
+            batch.put(key, bytes);
+            if (value != null) holders.put(key, value);
+        }
+
+        StorageEngine target = storage;
+        target.write(batch);
+        target.sync();
+
+        for (Map.Entry<String, ValueHolder> entry : holders.entrySet()) {
+            toStored(entry.getKey(), entry.getValue(), batch.get(entry.getKey()));
+        }
+
+        // One event per key and group, however many times it was written
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            watchers.emit(entry.getValue() != null ? EVENT_PUT : EVENT_REMOVE, entry.getKey());
+        }
+    }
+
+    /**
+     * Let the value cache take over a value which is persisted now,
+     * unless the key got a newer value meanwhile
+     */
+    private void toStored(String key, ValueHolder holder, byte[] value) {
+        if (valueCache == null || holder instanceof ValueHolder.Counter) {
+            // Counters stay in memory, they are updated in place
+            return;
+        }
+
+        ValueHolder.Stored stored = valueCache.stored(key, value);
+        if (!hm1.replace(key, holder, stored)) {
+            valueCache.discard(stored);
+            return;
+        }
+
+        if (decodedCache != null) decodedCache.moved(key, holder, stored);
+        if (slabs != null) slabs.free(holder);
+    }
+
+    public final void clearRAM() {
+        replaceTable(new ConcurrentHashMap<>());
+    }
+
+    public final boolean isRAMClean() {
+        return hm1.isEmpty();
+    }
+
+    /**
+     * @return Counters of the decoded value cache,
+     *         or null if it is disabled
+     */
+    public final CacheStats getDecodedCacheStats() {
+        return decodedCache != null ? decodedCache.stats() : null;
+    }
+
+    /**
+     * @return Counters of the lazy loading value cache,
+     *         or null if lazy loading is disabled
+     */
+    public final CacheStats getValueCacheStats() {
+        return valueCache != null ? valueCache.stats() : null;
+    }
+
+    /**
+     * Get the events of a key on the listener executor. Events waiting
+     * for delivery are coalesced, the listener gets the latest one.
+     * @param key Watched key
+     * @param listener Listener, it may watch many keys and prefixes
+     */
+    public final void watchKey(String key, KeyListener listener) {
+        watchers.watchKey(key, listener);
+    }
+
+    /**
+     * Like watchKey, for every key which starts with the prefix
+     * @param prefix Watched prefix, an empty prefix watches every key
+     * @param listener Listener, it may watch many keys and prefixes
+     */
+    public final void watchPrefix(String prefix, KeyListener listener) {
+        watchers.watchPrefix(prefix, listener);
+    }
+
+    /**
+     * Remove every watch of the listener
+     */
+    public final void unwatch(KeyListener listener) {
+        watchers.unwatch(listener);
+    }
+
+    public final void exportToDir(File dir) {
+        if (dir.isDirectory()) {
+            writeAll(dir);
+        } else {
+            throw new RuntimeException(dir + " is not a directory");
+        }
+    }
+
+    public final void refresh() {
+        writeAll();
+        readAll();
+    }
+
+    public void writeKey(String key) {
+        writeKey(storage, key);
+    }
+
+    private void writeKey(StorageEngine target, String key) {
+        synchronized (keyLocks.get(key)) {
+            try {
+                ValueHolder value = hm1.get(key);
+                if (value == null || (target == storage && value instanceof ValueHolder.Stored)) {
+                    return;
+                }
+
+                byte[] bytes = value.get();
+                if (bytes != null) {
+                    target.write(key, bytes);
+                    if (target == storage) toStored(key, value, bytes);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public void writeAll() {
+        long start = startTimer();
+        try {
+            writeAll(storage);
+            storage.sync();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        stopTimer(Metrics.WRITE_ALL, start);
+    }
+
+    private void writeAll(File dir) {
+        StorageEngine target = openStorage(storageEngine, dir, logProvider, false, syncPolicy, true);
+        try {
+            writeAll(target);
+            target.sync();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                target.close();
+            } catch (Throwable t) {
+                logProvider.onLog("Closing the export target failed: " + t);
+            }
+        }
+    }
+
+    private void writeAll(StorageEngine target) throws IOException {
+        String[] keys = getKeys();
+        if (target.supportsParallelWrites()) {
+            Parallel.forRange(bulkPool, keys.length, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    writeKey(target, keys[i]);
+                }
+            });
+            return;
+        }
+
+        // The engine writes one key at a time, give it groups instead
+        List<String> all = Arrays.asList(keys);
+        for (int from = 0; from < keys.length; from += WRITE_GROUP_SIZE) {
+            writeKeys(target, all.subList(from, Math.min(keys.length, from + WRITE_GROUP_SIZE)));
+        }
+    }
+
+    /**
+     * Write the keys at once, they are locked until the write is done
+     * so the storage never gets an older value than a concurrent writer
+     */
+    private void writeKeys(StorageEngine target, List<String> keys) {
+        keyLocks.runLocked(keys, () -> {
+            Map<String, byte[]> group = new LinkedHashMap<>();
+            Map<String, ValueHolder> holders = new HashMap<>();
+            for (String key : keys) {
+                ValueHolder value = hm1.get(key);
+                if (value == null || (target == storage && value instanceof ValueHolder.Stored)) {
+                    continue;
+                }
+
+                byte[] bytes = value.get();
+                if (bytes != null) {
+                    group.put(key, bytes);
+                    holders.put(key, value);
+                }
+            }
+
+            try {
+                target.write(group);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (target == storage) {
+                for (Map.Entry<String, byte[]> entry : group.entrySet()) {
+                    toStored(entry.getKey(), holders.get(entry.getKey()), entry.getValue());
+                }
+            }
+        });
+    }
+
+    public void writeAllAsync(Runnable onFinished) {
+        writeAllAsync().whenComplete((result, error) -> {
+            if (error != null) {
+                logProvider.onLog("Writing the database failed: " + error);
+            }
+            onFinished.run();
+        });
+    }
+
+    /**
+     * Async writeAll(), it runs after the bulk operations started before it
+     * @return A future which completes when every value is persisted
+     */
+    public final CompletableFuture<Void> writeAllAsync() {
+        if (flusher != null) {
+            return chainBulk(() -> {
+                flusher.markDirty(Arrays.asList(getKeys()));
+                return flusher.flush();
+            });
+        }
+
+        return chainBulk(() -> CompletableFuture.runAsync(this::writeAll, asyncExecutor));
+    }
+
+    public final void readKey(String key) {
+        synchronized (keyLocks.get(key)) {
+            try {
+                byte[] value = storage.read(key);
+                if (value != null) {
+                    if (Expiry.hasExpiry(value)) {
+                        // The table schedules it, see putToTable
+                        expiring = true;
+                    }
+
+                    tableLock.readLock().lock();
+                    try {
+                        putToTable(key, new ValueHolder.Heap(value));
+                    } finally {
+                        tableLock.readLock().unlock();
+                    }
+
+                    watchers.emit(EVENT_RELOAD, key);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Replace the memory content with the storage content.
+     * The table is loaded aside and swapped in at once, writes which are
+     * not persisted before the swap are dropped. Pending permanent writes
+     * are committed first. In lazy mode only the keys are loaded.
+     * Values which fail their checksum are reported to the log provider
+     * and skipped.
+     */
+    public void readAll() {
+        long start = startTimer();
+        if (flusher != null) {
+            try {
+                flusher.flush().join();
+            } catch (Throwable ignored) {}
+        }
+
+        ConcurrentHashMap<String, ValueHolder> table = new ConcurrentHashMap<>();
+        try {
+            ValueCache cache = valueCache;
+            if (cache != null) {
+                storage.loadKeys((key, expiresAt) -> {
+                    if (expiresAt != 0) {
+                        scheduleExpiry(key, expiresAt);
+                    }
+                    table.put(key, cache.stored(key));
+                });
+            } else {
+                storage.load((key, value) -> {
+                    scheduleLoaded(key, value);
+                    table.put(key, offHeap(value));
+                }, bulkPool);
+            }
+        } catch (IOException e) {
+            // Keep the current table rather than a partial one
+            throw new RuntimeException(e);
+        }
+
+        replaceTable(table);
+        stopTimer(Metrics.READ_ALL, start);
+    }
+
+    public void readAllAsync(Runnable onFinished) {
+        readAllAsync().whenComplete((result, error) -> {
+            if (error != null) {
+                logProvider.onLog("Loading the database failed: " + error);
+            }
+            onFinished.run();
+        });
+    }
+
+    /**
+     * Async readAll(), it runs after the bulk operations started before it
+     * @return A future which completes when the storage content is loaded
+     */
+    public final CompletableFuture<Void> readAllAsync() {
+        return chainBulk(() -> CompletableFuture.runAsync(this::readAll, asyncExecutor));
+    }
+
+    /**
+     * Start a bulk operation after the previous one, failed or not
+     */
+    private synchronized CompletableFuture<Void> chainBulk(Supplier<CompletableFuture<Void>> operation) {
+        CompletableFuture<Void> future = bulk.handle((result, error) -> null).thenCompose(ignored -> operation.get());
+        bulk = future;
+        return future;
+    }
+
+    /**
+     * @return The async loads and writes (readAllAsync, writeAllAsync
+     *         and the async constructors) are finished
+     */
+    public final boolean isReady() {
+        return bulk.isDone();
+    }
+
+    /**
+     * @return A future which completes when the async loads and writes
+     *         started so far are finished, exceptionally if the last one failed
+     */
+    public final CompletableFuture<Void> whenReady() {
+        return bulk;
+    }
+
+    /**
+     * Run an operation on the async executor, for the reads and
+     * writes which have no async variant
+     * @param operation Operation which gets this database
+     */
+    public final <T> CompletableFuture<T> supplyAsync(Function<SuperMiniDB, T> operation) {
+        return CompletableFuture.supplyAsync(() -> operation.apply(this), asyncExecutor);
+    }
+
+    public final CompletableFuture<String> getStringAsync(String key, String def) {
+        return supplyAsync(db -> db.getString(key, def));
+    }
+
+    public final CompletableFuture<byte[]> getBytesAsync(String key, byte[] def) {
+        return supplyAsync(db -> db.getBytes(key, def));
+    }
+
+    /**
+     * @return A future which completes when the value is in memory,
+     *         or when it is persisted if it is permanent
+     */
+    public final CompletableFuture<Void> putStringAsync(String key, String value, boolean permanent) {
+        return putAsync(() -> putString(key, value, permanent), permanent);
+    }
+
+    /**
+     * @return A future which completes when the value is in memory,
+     *         or when it is persisted if it is permanent
+     */
+    public final CompletableFuture<Void> putBytesAsync(String key, byte[] value, boolean permanent) {
+        return putAsync(() -> putBytes(key, value, permanent), permanent);
+    }
+
+    /**
+     * Async write(WriteBatch), the batch must not be changed until the future completes
+     */
+    public final CompletableFuture<Void> writeAsync(WriteBatch batch) {
+        return CompletableFuture.runAsync(() -> write(batch), asyncExecutor);
+    }
+
+    private CompletableFuture<Void> putAsync(Runnable put, boolean permanent) {
+        CompletableFuture<Void> future = CompletableFuture.runAsync(put, asyncExecutor);
+        return permanent ? future.thenCompose(ignored -> flush()) : future;
+    }
+
+    public final void refreshKey(String key) {
+        synchronized (keyLocks.get(key)) {
+            writeKey(key);
+            readKey(key);
+        }
+    }
+
+    private byte[] encode(String in) {
+        return seal(ValueCodec.encodeString(in));
+    }
+
+    /**
+     * Encrypt a plain value, the caller must not touch the
+     * input afterwards since it may be stored as is
+     */
+    private byte[] seal(byte[] plain) {
+        long start = startTimer();
+        byte[] out = compressor.compress(plain);
+        if (cipher != null) out = cipher.encode(out);
+        stopTimer(Metrics.ENCODE, start);
+        return out;
+    }
+
+    /**
+     * @return Plain value, callers must not modify it
+     */
+    private byte[] plain(byte[] value) {
+        long start = startTimer();
+        byte[] out = cipher != null ? cipher.decode(value) : value;
+        // Values are read back whatever the current compression setting is
+        if (Compressor.isCompressed(out)) out = compressor.decompress(out);
+        stopTimer(Metrics.DECODE, start);
+        return out;
+    }
+
+    private long startTimer() {
+        return timed ? System.nanoTime() : 0;
+    }
+
+    private void stopTimer(int operation, long start) {
+        if (timed) {
+            metrics.record(operation, System.nanoTime() - start);
+        }
+    }
+
+    public String[] getKeys() {
+        return getKeys(false);
+    }
+
+    public String[] getKeys(boolean descending) {
+        return getKeys(false, descending);
+    }
+
+    public String[] getKeys(boolean sort, boolean descending) {
+        String[] ref = new String[0];
+
+        tableLock.readLock().lock();
+        try {
+            Collection<String> keys = !sort ? hm1.keySet()
+                    : descending ? sortedKeys.descendingSet() : sortedKeys;
+            if (!expiring) {
+                return keys.toArray(ref);
+            }
+
+            long now = System.currentTimeMillis();
+            List<String> out = new ArrayList<>();
+            for (String key : keys) {
+                if (isLive(key, now)) {
+                    out.add(key);
+                }
+            }
+
+            return out.toArray(ref);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Page through the keys with a prefix in ascending order
+     * @param prefix Key prefix, empty for all keys
+     * @param startAfter Last key of the previous page, null for the first page
+     * @param limit Maximum key count, 0 or less for no limit
+     * @return Matching keys
+     */
+    public String[] getKeys(String prefix, String startAfter, int limit) {
+        List<String> out = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        tableLock.readLock().lock();
+        try {
+            NavigableSet<String> keys = startAfter != null && startAfter.compareTo(prefix) >= 0
+                    ? sortedKeys.tailSet(startAfter, false)
+                    : sortedKeys.tailSet(prefix, true);
+            for (String key : keys) {
+                if (!key.startsWith(prefix) || (limit > 0 && out.size() >= limit)) {
+                    break;
+                }
+
+                if (!expiring || isLive(key, now)) {
+                    out.add(key);
+                }
+            }
+        } finally {
+            tableLock.readLock().unlock();
+        }
+
+        return out.toArray(new String[0]);
+    }
+
+    /**
+     * Get the keys in a lexicographic range in ascending order
+     * @param from Lower bound (inclusive), null for no bound
+     * @param to Upper bound (exclusive), null for no bound
+     * @param limit Maximum key count, 0 or less for no limit
+     * @return Matching keys
+     */
+    public String[] getKeysInRange(String from, String to, int limit) {
+        List<String> out = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        tableLock.readLock().lock();
+        try {
+            NavigableSet<String> keys = from != null ? sortedKeys.tailSet(from, true) : sortedKeys;
+            for (String key : keys) {
+                if ((to != null && key.compareTo(to) >= 0) || (limit > 0 && out.size() >= limit)) {
+                    break;
+                }
+
+                if (!expiring || isLive(key, now)) {
+                    out.add(key);
+                }
+            }
+        } finally {
+            tableLock.readLock().unlock();
+        }
+
+        return out.toArray(new String[0]);
+    }
+
+    /*	DB QUERY
+     *
+     * 	SW=xxx key starts with
+     * 	EW=xxx key ends with
      * 	EQ=xxx key equals to
      * 	CT=xxx key contains
      */
     public Map<String, String> query(String rule) {
+        long start = startTimer();
+        String[] ruleArr = parseRule(rule);
+        Map<String, String> out = new HashMap<>();
+        for (Map.Entry<String, ValueHolder> entry : match(ruleArr[0], ruleArr[1]).entrySet()) {
+            byte[] value = snapshotPlainOf(entry.getKey(), entry.getValue());
+            if (value != null) {
+                out.put(entry.getKey(), ValueCodec.decodeString(value));
+            }
+        }
+        stopTimer(Metrics.QUERY, start);
+        return out;
+    }
+
+    /**
+     * Writers don't wait for scans, a key can be in the indexes
+     * a moment before or after it is in the table
+     */
+    private void addMatch(Map<String, ValueHolder> out, String key) {
+        ValueHolder holder = hm1.get(key);
+        if (holder != null) {
+            out.put(key, holder);
+        }
+    }
+
+    /**
+     * Lazy version of query(). Keys are found while the stream is consumed
+     * and a value is decoded only when getValue() is called on its entry,
+     * so limit() and short-circuiting operations stop the work early.
+     * Unlike query() the result is not a snapshot, keys which are added or
+     * removed while streaming may or may not be seen. Entries keep the
+     * value their key had when the entry was reached.
+     * @param rule Query rule, see query()
+     * @return Stream of the matching entries
+     */
+    public Stream<Map.Entry<String, String>> queryStream(String rule) {
+        String[] ruleArr = parseRule(rule);
+        ConcurrentHashMap<String, ValueHolder> table;
+        Stream<String> keys;
+
+        // Pick the table and its indexes together, they are swapped together
+        tableLock.readLock().lock();
+        try {
+            table = hm1;
+            keys = matchKeys(ruleArr[0], ruleArr[1], table, sortedKeys, queryIndex);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+
+        return keys.map(key -> {
+            ValueHolder value = table.get(key);
+            if (value == null || (expiring && Expiry.isExpired(expiresAtOf(value), System.currentTimeMillis()))) {
+                return null;
+            }
+
+            return (Map.Entry<String, String>) new LazyEntry(key, value);
+        }).filter(Objects::nonNull);
+    }
+
+    /**
+     * Lazy query which yields only the keys, see queryStream()
+     * @param rule Query rule, see query()
+     * @return Stream of the matching keys
+     */
+    public Stream<String> queryKeys(String rule) {
+        return queryStream(rule).map(Map.Entry::getKey);
+    }
+
+    private static String[] parseRule(String rule) {
         if (rule == null || !rule.contains("="))
             throw new RuntimeException("rule must be non-null and must contain = as delimiter");
         String[] ruleArr = rule.split("=", 2);
         if (ruleArr.length != 2 || ruleArr[0].trim().isEmpty() || ruleArr[1].trim().isEmpty()) {
             throw new RuntimeException("invalid rule");
         }
-        List<String> keys = new ArrayList<>(hm1.keySet());
-        Map<String, String> out = new HashMap<>();
-        switch (ruleArr[0].trim()) {
+        return new String[]{ruleArr[0].trim(), ruleArr[1].trim()};
+    }
+
+    private static Stream<String> matchKeys(String rule, String arg, Map<String, ValueHolder> table,
+                                            NavigableSet<String> sorted, KeyQueryIndex index) {
+        switch (rule) {
             case QUERY_RULE_STARTS_WITH:
-                for (String key : keys) {
-                    if (key.startsWith(ruleArr[1].trim())) {
-                        out.put(key, getString(key, ""));
+                Iterator<String> iterator = sorted.tailSet(arg, true).iterator();
+                return StreamSupport.stream(new Spliterators.AbstractSpliterator<String>(
+                        Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                    @Override
+                    public boolean tryAdvance(Consumer<? super String> action) {
+                        if (!iterator.hasNext()) {
+                            return false;
+                        }
+
+                        String key = iterator.next();
+                        if (!key.startsWith(arg)) {
+                            return false;
+                        }
+
+                        action.accept(key);
+                        return true;
                     }
-                }
-                break;
+                }, false);
             case QUERY_RULE_ENDS_WITH:
-                for (String key : keys) {
-                    if (key.endsWith(ruleArr[1].trim())) {
-                        out.put(key, getString(key, ""));
-                    }
-                }
-                break;
+                return index != null
+                        ? index.endsWith(arg).stream()
+                        : table.keySet().stream().filter(key -> key.endsWith(arg));
             case QUERY_RULE_EQUALS:
-                for (String key : keys) {
-                    if (key.equals(ruleArr[1].trim())) {
-                        out.put(key, getString(key, ""));
-                    }
-                }
-                break;
+                return table.containsKey(arg) ? Stream.of(arg) : Stream.empty();
             case QUERY_RULE_CONTAINS:
-                for (String key : keys) {
-                    if (key.contains(ruleArr[1].trim())) {
-                        out.put(key, getString(key, ""));
-                    }
-                }
-                break;
+                List<String> keys = index != null ? index.contains(arg) : null;
+                return keys != null
+                        ? keys.stream()
+                        : table.keySet().stream().filter(key -> key.contains(arg));
             default:
                 throw new RuntimeException("invalid rule");
         }
+    }
+
+    /**
+     * @return A point-in-time copy of the entries which match the rule
+     */
+    private Map<String, ValueHolder> match(String rule, String arg) {
+        Map<String, ValueHolder> out = new HashMap<>();
+
+        tableLock.readLock().lock();
+        try {
+            switch (rule) {
+                case QUERY_RULE_STARTS_WITH:
+                    for (String key : sortedKeys.tailSet(arg, true)) {
+                        if (!key.startsWith(arg)) {
+                            break;
+                        }
+
+                        addMatch(out, key);
+                    }
+                    break;
+                case QUERY_RULE_ENDS_WITH:
+                    if (queryIndex != null) {
+                        for (String key : queryIndex.endsWith(arg)) {
+                            addMatch(out, key);
+                        }
+                        break;
+                    }
+
+                    for (Map.Entry<String, ValueHolder> entry : hm1.entrySet()) {
+                        if (entry.getKey().endsWith(arg)) {
+                            out.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    break;
+                case QUERY_RULE_EQUALS:
+                    ValueHolder value = hm1.get(arg);
+                    if (value != null) {
+                        out.put(arg, value);
+                    }
+                    break;
+                case QUERY_RULE_CONTAINS:
+                    List<String> keys = queryIndex != null ? queryIndex.contains(arg) : null;
+                    if (keys != null) {
+                        for (String key : keys) {
+                            addMatch(out, key);
+                        }
+                        break;
+                    }
+
+                    for (Map.Entry<String, ValueHolder> entry : hm1.entrySet()) {
+                        if (entry.getKey().contains(arg)) {
+                            out.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("invalid rule");
+            }
+        } finally {
+            tableLock.readLock().unlock();
+        }
+
         return out;
     }
 
+    /**
+     * Query result entry which decodes its value on first access
+     */
+    private final class LazyEntry implements Map.Entry<String, String> {
+        private final String key;
+        private final ValueHolder value;
+        private String decoded = null;
+
+        LazyEntry(String key, ValueHolder value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return Decoded value, or null if a lazy loaded key is gone meanwhile.
+         *         An off-heap value which is replaced meanwhile reads the newer value.
+         */
+        @Override
+        public String getValue() {
+            if (decoded == null) {
+                byte[] bytes = snapshotPlainOf(key, value);
+                decoded = bytes != null ? ValueCodec.decodeString(bytes) : null;
+            }
+
+            return decoded;
+        }
+
+        @Override
+        public String setValue(String value) {
+            throw new UnsupportedOperationException("query results are read-only");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+
     private static class DefaultLogProvider implements LogProvider {
         @Override
         public void onLog(String text) {
@@ -0,0 +1,30 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.Map;
+
+/**
+ * JMX view of a database, see DBOptions.setRegisterMBean.
+ * Operation attributes are empty unless the metrics are OperationMetrics.
+ */
+public interface SuperMiniDBMXBean {
+    int getKeyCount();
+
+    long getMemoryUsage();
+
+    long getDiskUsage();
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getOperationMeanNanos();
+
+    Map<String, Long> getOperationP99Nanos();
+}
@@ -0,0 +1,207 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Hierarchical timer wheel of expiring keys. Level 0 has a slot per
+ * tick, every next level a slot per 64 slots of the level below. When
+ * a level 0 rotation ends, the due slot of the level above is spread
+ * over the lower levels. Scheduling, cancelling and expiring are O(1)
+ * per key, a key has at most one entry and scheduling it again moves
+ * it. The keys of a tick are handed over together, on a background
+ * thread which is started with the first key. The handler still checks
+ * whether they really expired, a key can change after it is handed over.
+ */
+final class TimerWheel {
+    interface Handler {
+        void expired(List<String> keys);
+    }
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 6;
+
+    private final String name;
+    private final long tickMillis;
+    private final Handler handler;
+    private final LogProvider logProvider;
+    // Guarded by this, every slot is a circular list behind its head
+    private final Entry[] slots = new Entry[LEVELS * SLOTS];
+    private final Map<String, Entry> entries = new HashMap<>();
+    private List<String> due = new ArrayList<>();
+    private long currentTick;
+    private ScheduledThreadPoolExecutor timer = null;
+    private boolean closed = false;
+
+    TimerWheel(String name, long tickMillis, Handler handler, LogProvider logProvider) {
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.handler = handler;
+        this.logProvider = logProvider;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Entry(null, 0);
+        }
+    }
+
+    /**
+     * Schedule the key in place of its current entry
+     * @param expiresAt Expiry time, 0 only cancels the current entry
+     */
+    synchronized void schedule(String key, long expiresAt) {
+        if (closed) {
+            return;
+        }
+
+        Entry old = entries.remove(key);
+        if (old != null) {
+            old.unlink();
+        }
+
+        if (expiresAt == 0) {
+            return;
+        }
+
+        // Round up, a key never expires early
+        Entry entry = new Entry(key, (expiresAt + tickMillis - 1) / tickMillis);
+        entries.put(key, entry);
+        add(entry);
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "SuperMiniDB-expiry-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleWithFixedDelay(this::run, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Schedule the key with an expiry time which is read while no other
+     * call can change the wheel, so the last caller always wins
+     */
+    synchronized void reschedule(String key, LongSupplier expiresAt) {
+        schedule(key, expiresAt.getAsLong());
+    }
+
+    /**
+     * @return Number of scheduled keys
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (timer != null) {
+            timer.shutdown();
+        }
+    }
+
+    /**
+     * @return Keys which are due at the time, in the order they became due
+     */
+    synchronized List<String> advance(long now) {
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            // Higher levels first, so cascaded keys can land in this tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                    Entry head = slot(level, currentTick);
+                    while (head.next != head) {
+                        Entry entry = head.next;
+                        entry.unlink();
+                        add(entry);
+                    }
+                }
+            }
+
+            Entry head = slot(0, currentTick);
+            while (head.next != head) {
+                expire(head.next);
+            }
+        }
+
+        List<String> out = due;
+        due = new ArrayList<>();
+        return out;
+    }
+
+    private void run() {
+        try {
+            List<String> keys = advance(System.currentTimeMillis());
+            if (!keys.isEmpty()) {
+                handler.expired(keys);
+            }
+        } catch (Throwable t) {
+            logProvider.onLog("Expiring keys failed: " + t);
+        }
+    }
+
+    private void add(Entry entry) {
+        long delta = entry.tick - currentTick;
+        if (delta <= 0) {
+            expire(entry);
+            return;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+
+        // Too far for the top level, it comes back around and is added again
+        long tick = Math.min(entry.tick, currentTick + (1L << (BITS * LEVELS)) - 1);
+        entry.linkBefore(slot(level, tick));
+    }
+
+    private void expire(Entry entry) {
+        entry.unlink();
+        entries.remove(entry.key);
+        due.add(entry.key);
+    }
+
+    private Entry slot(int level, long tick) {
+        return slots[level * SLOTS + (int) ((tick >>> (BITS * level)) & (SLOTS - 1))];
+    }
+
+    private static final class Entry {
+        final String key;
+        final long tick;
+        Entry prev = this, next = this;
+
+        Entry(String key, long tick) {
+            this.key = key;
+            this.tick = tick;
+        }
+
+        void linkBefore(Entry head) {
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = this;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded cache for the values of ValueHolder.Stored.
+ * Eviction is CLOCK (second chance LRU), a hit only sets the referenced
+ * flag of its holder, so reads don't take the lock.
+ */
+final class ValueCache {
+    interface Loader {
+        /**
+         * @return Stored value of the key, or null if it is gone
+         */
+        byte[] read(String key) throws IOException;
+    }
+
+    // Rough heap cost of a cached array and its ring slot
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private final Loader loader;
+    private final long capacity;
+    private final ArrayDeque<ValueHolder.Stored> ring = new ArrayDeque<>();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+    private long size = 0;
+    private int dead = 0;
+
+    ValueCache(Loader loader, long capacity) {
+        this.loader = loader;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return A holder whose value is loaded on first access
+     */
+    ValueHolder.Stored stored(String key) {
+        return new ValueHolder.Stored(this, key);
+    }
+
+    /**
+     * @return A holder which starts with a value that is known to be in the storage
+     */
+    ValueHolder.Stored stored(String key, byte[] value) {
+        ValueHolder.Stored holder = new ValueHolder.Stored(this, key);
+        admit(holder, value);
+        return holder;
+    }
+
+    byte[] get(ValueHolder.Stored holder) {
+        byte[] value = holder.value;
+        if (value != null) {
+            holder.referenced = true;
+            hits.increment();
+            return value;
+        }
+
+        misses.increment();
+        try {
+            value = loader.read(holder.key);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (value != null) {
+            admit(holder, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Drop the value of a holder which left the table
+     */
+    synchronized void discard(ValueHolder.Stored holder) {
+        holder.discarded = true;
+        byte[] value = holder.value;
+        if (value != null) {
+            holder.value = null;
+            size -= cost(value);
+            dead++;
+
+            // The slot stays in the ring until it is passed over, don't let them pile up
+            if (dead > ring.size() / 2) {
+                ring.removeIf(h -> h.value == null);
+                dead = 0;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (ValueHolder.Stored holder : ring) {
+            holder.discarded = true;
+            holder.value = null;
+        }
+
+        ring.clear();
+        size = 0;
+        dead = 0;
+    }
+
+    CacheStats stats() {
+        long current;
+        synchronized (this) {
+            current = size;
+        }
+
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), current, capacity);
+    }
+
+    private synchronized void admit(ValueHolder.Stored holder, byte[] value) {
+        long cost = cost(value);
+        if (holder.discarded || holder.value != null || cost > capacity) {
+            return;
+        }
+
+        holder.value = value;
+        holder.referenced = false;
+        ring.addLast(holder);
+        size += cost;
+
+        while (size > capacity) {
+            ValueHolder.Stored victim = ring.pollFirst();
+            byte[] victimValue = victim.value;
+
+            if (victimValue == null) {
+                dead--;
+            } else if (victim.referenced) {
+                victim.referenced = false;
+                ring.addLast(victim);
+            } else {
+                victim.value = null;
+                size -= cost(victimValue);
+                evictions.increment();
+            }
+        }
+    }
+
+    private static long cost(byte[] value) {
+        return value.length + ENTRY_OVERHEAD;
+    }
+}
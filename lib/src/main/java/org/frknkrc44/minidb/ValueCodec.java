@@ -0,0 +1,303 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Plain value format, before the cipher
+ *
+ * A value that doesn't start with MARKER is UTF-8 text, the format every
+ * value had before typed values. A typed value is MARKER, a tag and the
+ * payload. Strings and byte arrays are written untagged unless they start
+ * with MARKER themselves.
+ *
+ *   TAG_STRING, TAG_BYTES  raw payload
+ *   TAG_LONG, TAG_INT      zigzag varint
+ *   TAG_BYTE, TAG_BOOLEAN  1 byte
+ *   TAG_DOUBLE, TAG_FLOAT  IEEE 754 bits, big endian
+ *   TAG_COMPRESSED         another plain value, see Compressor
+ *   TAG_TTL                not a plain value, see Expiry
+ */
+final class ValueCodec {
+    static final byte MARKER = 0;
+    static final byte TAG_STRING = 1,
+            TAG_BYTES = 2,
+            TAG_LONG = 3,
+            TAG_INT = 4,
+            TAG_BYTE = 5,
+            TAG_DOUBLE = 6,
+            TAG_FLOAT = 7,
+            TAG_BOOLEAN = 8,
+            TAG_COMPRESSED = 9,
+            TAG_TTL = 10;
+
+    private ValueCodec() {}
+
+    static boolean isTagged(byte[] value) {
+        return value.length >= 2 && value[0] == MARKER;
+    }
+
+    static byte tagOf(byte[] value) {
+        return isTagged(value) ? value[1] : TAG_STRING;
+    }
+
+    static byte[] encodeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return bytes.length > 0 && bytes[0] == MARKER ? tag(TAG_STRING, bytes, 0, bytes.length) : bytes;
+    }
+
+    /**
+     * @return Encoded copy of the input
+     */
+    static byte[] encodeBytes(byte[] value, int offset, int length) {
+        return length > 0 && value[offset] == MARKER
+                ? tag(TAG_BYTES, value, offset, length)
+                : Arrays.copyOfRange(value, offset, offset + length);
+    }
+
+    static byte[] encodeLong(long value) {
+        return varint(TAG_LONG, value);
+    }
+
+    static byte[] encodeInteger(int value) {
+        return varint(TAG_INT, value);
+    }
+
+    static byte[] encodeByte(byte value) {
+        return new byte[]{MARKER, TAG_BYTE, value};
+    }
+
+    static byte[] encodeBoolean(boolean value) {
+        return new byte[]{MARKER, TAG_BOOLEAN, (byte) (value ? 1 : 0)};
+    }
+
+    static byte[] encodeDouble(double value) {
+        return fixed(TAG_DOUBLE, Double.doubleToRawLongBits(value), 8);
+    }
+
+    static byte[] encodeFloat(float value) {
+        return fixed(TAG_FLOAT, Float.floatToRawIntBits(value), 4);
+    }
+
+    static String decodeString(byte[] value) {
+        if (!isTagged(value)) {
+            return new String(value, StandardCharsets.UTF_8);
+        }
+
+        switch (value[1]) {
+            case TAG_STRING:
+            case TAG_BYTES:
+                return new String(value, 2, value.length - 2, StandardCharsets.UTF_8);
+            case TAG_LONG:
+            case TAG_INT:
+                return String.valueOf(readVarint(value));
+            case TAG_BYTE:
+                return String.valueOf(value[2]);
+            case TAG_BOOLEAN:
+                return String.valueOf(value[2] != 0);
+            case TAG_DOUBLE:
+                return String.valueOf(Double.longBitsToDouble(readFixed(value, 8)));
+            case TAG_FLOAT:
+                return String.valueOf(Float.intBitsToFloat((int) readFixed(value, 4)));
+            default:
+                throw new RuntimeException("unknown value tag: " + value[1]);
+        }
+    }
+
+    /**
+     * @param owned The caller owns the value array, it may be returned as is
+     */
+    static byte[] decodeBytes(byte[] value, boolean owned) {
+        if (!isTagged(value)) {
+            return owned ? value : value.clone();
+        }
+
+        byte tag = value[1];
+        if (tag == TAG_STRING || tag == TAG_BYTES) {
+            return Arrays.copyOfRange(value, 2, value.length);
+        }
+
+        return decodeString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*  The typed readers below follow what parsing the text form
+     *  of the value would give, so old and new values behave the same.
+     */
+
+    static long decodeLong(byte[] value, long def) {
+        switch (tagOf(value)) {
+            case TAG_LONG:
+            case TAG_INT:
+                return readVarint(value);
+            case TAG_BYTE:
+                return value[2];
+            case TAG_STRING:
+                try {
+                    return Long.parseLong(decodeString(value));
+                } catch (Throwable ignored) {
+                    return def;
+                }
+            default:
+                return def;
+        }
+    }
+
+    static int decodeInteger(byte[] value, int def) {
+        switch (tagOf(value)) {
+            case TAG_LONG:
+            case TAG_INT:
+                long l = readVarint(value);
+                return l == (int) l ? (int) l : def;
+            case TAG_BYTE:
+                return value[2];
+            case TAG_STRING:
+                try {
+                    return Integer.parseInt(decodeString(value));
+                } catch (Throwable ignored) {
+                    return def;
+                }
+            default:
+                return def;
+        }
+    }
+
+    static byte decodeByte(byte[] value, byte def) {
+        switch (tagOf(value)) {
+            case TAG_LONG:
+            case TAG_INT:
+                long l = readVarint(value);
+                return l == (byte) l ? (byte) l : def;
+            case TAG_BYTE:
+                return value[2];
+            case TAG_STRING:
+                try {
+                    return Byte.parseByte(decodeString(value));
+                } catch (Throwable ignored) {
+                    return def;
+                }
+            default:
+                return def;
+        }
+    }
+
+    static double decodeDouble(byte[] value, double def) {
+        switch (tagOf(value)) {
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(readFixed(value, 8));
+            case TAG_LONG:
+            case TAG_INT:
+                return readVarint(value);
+            case TAG_BYTE:
+                return value[2];
+            case TAG_FLOAT:
+            case TAG_STRING:
+                try {
+                    return Double.parseDouble(decodeString(value));
+                } catch (Throwable ignored) {
+                    return def;
+                }
+            default:
+                return def;
+        }
+    }
+
+    static float decodeFloat(byte[] value, float def) {
+        switch (tagOf(value)) {
+            case TAG_FLOAT:
+                return Float.intBitsToFloat((int) readFixed(value, 4));
+            case TAG_DOUBLE:
+                return (float) Double.longBitsToDouble(readFixed(value, 8));
+            case TAG_LONG:
+            case TAG_INT:
+                return readVarint(value);
+            case TAG_BYTE:
+                return value[2];
+            case TAG_STRING:
+                try {
+                    return Float.parseFloat(decodeString(value));
+                } catch (Throwable ignored) {
+                    return def;
+                }
+            default:
+                return def;
+        }
+    }
+
+    static boolean decodeBoolean(byte[] value) {
+        switch (tagOf(value)) {
+            case TAG_BOOLEAN:
+                return value[2] != 0;
+            case TAG_STRING:
+                return Boolean.parseBoolean(decodeString(value));
+            default:
+                return false;
+        }
+    }
+
+    private static byte[] tag(byte tag, byte[] value, int offset, int length) {
+        byte[] out = new byte[length + 2];
+        out[0] = MARKER;
+        out[1] = tag;
+        System.arraycopy(value, offset, out, 2, length);
+        return out;
+    }
+
+    private static byte[] varint(byte tag, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        int length = 1;
+        for (long v = zigzag >>> 7; v != 0; v >>>= 7) {
+            length++;
+        }
+
+        byte[] out = new byte[2 + length];
+        out[0] = MARKER;
+        out[1] = tag;
+        for (int i = 2; i < out.length - 1; i++) {
+            out[i] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out[out.length - 1] = (byte) zigzag;
+        return out;
+    }
+
+    private static long readVarint(byte[] value) {
+        long zigzag = 0;
+        int shift = 0;
+        for (int i = 2; i < value.length && shift < 64; i++, shift += 7) {
+            zigzag |= (long) (value[i] & 0x7F) << shift;
+            if ((value[i] & 0x80) == 0) {
+                break;
+            }
+        }
+
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static byte[] fixed(byte tag, long bits, int length) {
+        byte[] out = new byte[2 + length];
+        out[0] = MARKER;
+        out[1] = tag;
+        for (int i = out.length - 1; i >= 2; i--) {
+            out[i] = (byte) bits;
+            bits >>>= 8;
+        }
+        return out;
+    }
+
+    private static long readFixed(byte[] value, int length) {
+        long bits = 0;
+        for (int i = 2; i < 2 + length; i++) {
+            bits = (bits << 8) | (value[i] & 0xFF);
+        }
+        return bits;
+    }
+}
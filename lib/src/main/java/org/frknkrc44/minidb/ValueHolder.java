@@ -0,0 +1,282 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * An encoded value in the in-memory table
+ */
+abstract class ValueHolder {
+    /**
+     * @return Encoded value, callers must not modify it. A Stored value
+     *         returns null when its key is gone from the storage, an
+     *         OffHeap value when its key got a newer value.
+     */
+    abstract byte[] get();
+
+    abstract int length();
+
+    /**
+     * @return Encoded value which the caller owns
+     */
+    abstract byte[] copy();
+
+    /**
+     * @return Read-only view of the encoded value, without copying it
+     */
+    abstract ByteBuffer buffer();
+
+    static final class Heap extends ValueHolder {
+        private final byte[] value;
+
+        Heap(byte[] value) {
+            this.value = value;
+        }
+
+        @Override
+        byte[] get() {
+            return value;
+        }
+
+        @Override
+        int length() {
+            return value.length;
+        }
+
+        @Override
+        byte[] copy() {
+            return value.clone();
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(value).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * A value that stays in a mapped segment until it is read
+     */
+    static final class Mapped extends ValueHolder {
+        private final ByteBuffer buffer;
+        private final int offset, length;
+
+        Mapped(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        byte[] get() {
+            byte[] out = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(out);
+            return out;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        byte[] copy() {
+            return get();
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            ByteBuffer view = buffer.asReadOnlyBuffer();
+            view.limit(offset + length).position(offset);
+            return view.slice();
+        }
+    }
+
+    /**
+     * A value which stays in the storage, the value cache
+     * keeps its bytes while it is hot
+     */
+    static final class Stored extends ValueHolder {
+        final ValueCache cache;
+        final String key;
+        // Guarded by the cache, read without it
+        volatile byte[] value = null;
+        volatile boolean referenced = false, discarded = false;
+
+        Stored(ValueCache cache, String key) {
+            this.cache = cache;
+            this.key = key;
+        }
+
+        @Override
+        byte[] get() {
+            return cache.get(this);
+        }
+
+        @Override
+        int length() {
+            byte[] out = get();
+            return out != null ? out.length : 0;
+        }
+
+        @Override
+        byte[] copy() {
+            byte[] out = get();
+            return out != null ? out.clone() : null;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            byte[] out = get();
+            return out != null ? ByteBuffer.wrap(out).asReadOnlyBuffer() : null;
+        }
+    }
+
+    /**
+     * A value in a slab of the off-heap allocator, only
+     * its address stays on the heap
+     */
+    static final class OffHeap extends ValueHolder {
+        final SlabAllocator allocator;
+        final long address;
+        final int length;
+        // Guarded by the allocator, read without it
+        volatile boolean freed = false;
+
+        OffHeap(SlabAllocator allocator, long address, int length) {
+            this.allocator = allocator;
+            this.address = address;
+            this.length = length;
+        }
+
+        @Override
+        byte[] get() {
+            return allocator.read(this);
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        byte[] copy() {
+            return get();
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            // The block is reused once it is freed, no views of it
+            byte[] out = get();
+            return out != null ? ByteBuffer.wrap(out).asReadOnlyBuffer() : null;
+        }
+    }
+
+    /**
+     * A long or double counter which is updated in place and
+     * encoded only when its encoded value is needed
+     */
+    static final class Counter extends ValueHolder {
+        final boolean floating;
+        private final AtomicLong bits;
+        private final UnaryOperator<byte[]> sealer;
+        private volatile Encoded encoded = null;
+        // Epoch milliseconds, 0 if it never expires
+        volatile long expiresAt;
+
+        /**
+         * @param sealer Turns a plain value into the encoded one
+         */
+        Counter(boolean floating, long bits, UnaryOperator<byte[]> sealer, long expiresAt) {
+            this.floating = floating;
+            this.bits = new AtomicLong(bits);
+            this.sealer = sealer;
+            this.expiresAt = expiresAt;
+        }
+
+        long longValue() {
+            return bits.get();
+        }
+
+        double doubleValue() {
+            return Double.longBitsToDouble(bits.get());
+        }
+
+        long add(long delta) {
+            return bits.addAndGet(delta);
+        }
+
+        double add(double delta) {
+            while (true) {
+                long current = bits.get();
+                double next = Double.longBitsToDouble(current) + delta;
+                if (bits.compareAndSet(current, Double.doubleToRawLongBits(next))) {
+                    return next;
+                }
+            }
+        }
+
+        byte[] plain() {
+            return plainOf(bits.get());
+        }
+
+        @Override
+        byte[] get() {
+            long current = bits.get();
+            long expiry = expiresAt;
+            Encoded last = encoded;
+            if (last != null && last.bits == current && last.expiresAt == expiry) {
+                return last.value;
+            }
+
+            byte[] value = sealer.apply(plainOf(current));
+            if (expiry != 0) value = Expiry.wrap(value, expiry);
+            encoded = new Encoded(current, expiry, value);
+            return value;
+        }
+
+        private byte[] plainOf(long bits) {
+            return floating
+                    ? ValueCodec.encodeDouble(Double.longBitsToDouble(bits))
+                    : ValueCodec.encodeLong(bits);
+        }
+
+        @Override
+        int length() {
+            return get().length;
+        }
+
+        @Override
+        byte[] copy() {
+            return get().clone();
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(get()).asReadOnlyBuffer();
+        }
+
+        private static final class Encoded {
+            final long bits, expiresAt;
+            final byte[] value;
+
+            Encoded(long bits, long expiresAt, byte[] value) {
+                this.bits = bits;
+                this.expiresAt = expiresAt;
+                this.value = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A group of puts and removals which SuperMiniDB.write() applies
+ * together. Only the last operation on a key is kept.
+ * A batch is not thread-safe and can be reused after clear().
+ */
+public final class WriteBatch {
+    // Plain values before the cipher, null removes the key
+    private final LinkedHashMap<String, byte[]> ops = new LinkedHashMap<>();
+
+    public WriteBatch putString(String key, String value) {
+        return put(key, ValueCodec.encodeString(value));
+    }
+
+    public WriteBatch putStringArray(String key, String[] value) {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (String item : value)
+            stringBuilder.append(item).append((char) 1);
+
+        stringBuilder.delete(stringBuilder.length() - 1, stringBuilder.length());
+        return putString(key, stringBuilder.toString());
+    }
+
+    public WriteBatch putBytes(String key, byte[] value) {
+        return put(key, ValueCodec.encodeBytes(value, 0, value.length));
+    }
+
+    public WriteBatch putLong(String key, long value) {
+        return put(key, ValueCodec.encodeLong(value));
+    }
+
+    public WriteBatch putByte(String key, byte value) {
+        return put(key, ValueCodec.encodeByte(value));
+    }
+
+    public WriteBatch putInteger(String key, int value) {
+        return put(key, ValueCodec.encodeInteger(value));
+    }
+
+    public WriteBatch putFloat(String key, float value) {
+        return put(key, ValueCodec.encodeFloat(value));
+    }
+
+    public WriteBatch putDouble(String key, double value) {
+        return put(key, ValueCodec.encodeDouble(value));
+    }
+
+    public WriteBatch putBoolean(String key, boolean value) {
+        return put(key, ValueCodec.encodeBoolean(value));
+    }
+
+    public WriteBatch remove(String key) {
+        return put(key, null);
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    public void clear() {
+        ops.clear();
+    }
+
+    /**
+     * @return Staged plain values, null values remove the key
+     */
+    Map<String, byte[]> ops() {
+        return Collections.unmodifiableMap(ops);
+    }
+
+    private WriteBatch put(String key, byte[] plain) {
+        if (key == null) {
+            throw new RuntimeException("key must be non-null");
+        }
+
+        // Keep the staging order of the latest operation
+        ops.remove(key);
+        ops.put(key, plain);
+        return this;
+    }
+}
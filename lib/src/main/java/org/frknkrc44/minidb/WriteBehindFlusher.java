@@ -0,0 +1,175 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects dirty keys and commits them in groups on a background thread.
+ * A key which is written many times before its group is committed is
+ * written only once, with the value it has at commit time.
+ */
+final class WriteBehindFlusher implements Runnable {
+    interface Committer {
+        /**
+         * Persist the current values of the keys and sync the storage
+         */
+        void commit(Set<String> keys) throws IOException;
+    }
+
+    private final Object lock = new Object();
+    private final Committer committer;
+    private final LogProvider logProvider;
+    private final int batchSize;
+    private final long delayNanos;
+    private final Thread thread;
+    private LinkedHashSet<String> dirty = new LinkedHashSet<>();
+    private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+    private long dirtySince;
+    private boolean closed = false;
+
+    WriteBehindFlusher(String name, Committer committer, LogProvider logProvider,
+                       int batchSize, long delayMillis) {
+        this.committer = committer;
+        this.logProvider = logProvider;
+        this.batchSize = batchSize;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        thread = new Thread(this, "SuperMiniDB-flusher-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void markDirty(String key) {
+        synchronized (lock) {
+            if (dirty.isEmpty()) {
+                dirtySince = System.nanoTime();
+                lock.notifyAll();
+            }
+
+            if (dirty.add(key) && dirty.size() == batchSize) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    void markDirty(Collection<String> keys) {
+        synchronized (lock) {
+            if (dirty.isEmpty()) {
+                dirtySince = System.nanoTime();
+            }
+
+            dirty.addAll(keys);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return A future which completes once every key that is dirty
+     *         at call time is committed
+     */
+    CompletableFuture<Void> flush() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (lock) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("flusher is closed"));
+            } else {
+                waiters.add(future);
+                lock.notifyAll();
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Commit the remaining keys and stop the thread
+     */
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            LinkedHashSet<String> batch;
+            List<CompletableFuture<Void>> done;
+
+            synchronized (lock) {
+                try {
+                    while (!closed && waiters.isEmpty() && dirty.size() < batchSize) {
+                        if (dirty.isEmpty()) {
+                            lock.wait();
+                            continue;
+                        }
+
+                        long remaining = dirtySince + delayNanos - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+
+                if (closed && dirty.isEmpty() && waiters.isEmpty()) {
+                    return;
+                }
+
+                batch = dirty;
+                done = waiters;
+                dirty = new LinkedHashSet<>();
+                waiters = new ArrayList<>();
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    committer.commit(batch);
+                }
+
+                for (CompletableFuture<Void> future : done) {
+                    future.complete(null);
+                }
+            } catch (Throwable t) {
+                logProvider.onLog("Write-behind commit failed: " + t);
+
+                synchronized (lock) {
+                    if (!closed) {
+                        // Retry after the delay, newer dirty keys stay in place
+                        batch.addAll(dirty);
+                        dirty = batch;
+                        dirtySince = System.nanoTime();
+                    }
+                }
+
+                for (CompletableFuture<Void> future : done) {
+                    future.completeExceptionally(t);
+                }
+            }
+        }
+    }
+}
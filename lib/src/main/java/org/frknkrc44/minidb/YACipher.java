@@ -9,60 +9,108 @@
 
 package org.frknkrc44.minidb;
 
-import java.security.spec.InvalidKeySpecException;
+import java.nio.ByteBuffer;
 
+/*
+ * Record format:
+ *   byte  FORMAT_VERSION
+ *   input bytes XOR keystream
+ *
+ * The first format XORed every input byte with every key byte,
+ * (key[j] ^ i ^ j) for each j. That folds into one byte per position
+ * which only depends on i & 0xFF, so the keystream is a 256 byte table.
+ * Those values were stored as hex numbers split by ESC, they still decode.
+ */
 final class YACipher extends BaseCipher {
-    private final char mSplitKey = 0x1B;
+    private static final byte FORMAT_VERSION = 2;
+    private static final byte LEGACY_SPLIT_KEY = 0x1B;
+    private static final int PERIOD = 256;
+
+    private final byte[] stream = new byte[PERIOD];
+    private final long[] words = new long[PERIOD / 8];
 
     public YACipher(byte[] key) {
         super(key);
-    }
-
-    @Override
-    public byte[] encode(byte[] input) {
-        return encode(input, false);
-    }
 
-    private byte[] encode(byte[] input, boolean raw) {
-        for (int i = 0; i < input.length; i++) {
-            for (int j = 0; j < mKey.length; j++) {
-                input[i] ^= mKey[j] ^ i ^ j;
-            }
+        int fold = 0;
+        for (int j = 0; j < key.length; j++) {
+            fold ^= key[j] ^ j;
         }
 
-        if (!raw) {
-            return toHex(input);
+        boolean odd = (key.length & 1) != 0;
+        for (int i = 0; i < PERIOD; i++) {
+            stream[i] = (byte) (odd ? fold ^ i : fold);
         }
 
-        return input;
+        ByteBuffer.wrap(stream).asLongBuffer().get(words);
     }
 
     @Override
-    public byte[] decode(byte[] input) {
-        return encode(fromHex(input), true);
+    public byte[] encode(byte[] input, int offset, int length) {
+        byte[] output = new byte[1 + length];
+        output[0] = FORMAT_VERSION;
+        xor(input, offset, output, 1, length);
+        return output;
     }
 
-    private byte[] fromHex(byte[] input) {
-        String str = new String(input);
-        String[] split = str.split(String.valueOf(mSplitKey));
+    @Override
+    public byte[] decode(byte[] input) {
+        if (input.length == 0) {
+            return input;
+        }
 
-        byte[] output = new byte[split.length];
-        for(int i = 0; i < split.length; i++) {
-            output[i] = (byte) Long.parseLong(split[i], 16);
+        if (input[0] == FORMAT_VERSION) {
+            byte[] output = new byte[input.length - 1];
+            xor(input, 1, output, 0, output.length);
+            return output;
         }
 
+        // The legacy format starts with a hex digit
+        byte[] output = fromHex(input);
+        xor(output, 0, output, 0, output.length);
         return output;
     }
 
-    private byte[] toHex(byte[] input) {
-        StringBuilder stringBuilder = new StringBuilder();
+    private void xor(byte[] input, int inOffset, byte[] output, int outOffset, int length) {
+        ByteBuffer in = ByteBuffer.wrap(input), out = ByteBuffer.wrap(output);
+        int i = 0;
 
-        for (byte item : input) {
-            stringBuilder.append(Integer.toHexString(item));
-            stringBuilder.append(mSplitKey);
+        // The period is a multiple of 8, so every word starts at a word of the stream
+        for (; i + 8 <= length; i += 8) {
+            out.putLong(outOffset + i, in.getLong(inOffset + i) ^ words[(i & (PERIOD - 1)) >>> 3]);
         }
 
-        stringBuilder.delete(stringBuilder.length() - 1, stringBuilder.length());
-        return stringBuilder.toString().getBytes();
+        for (; i < length; i++) {
+            output[outOffset + i] = (byte) (input[inOffset + i] ^ stream[i & (PERIOD - 1)]);
+        }
+    }
+
+    private static byte[] fromHex(byte[] input) {
+        int count = 1;
+        for (byte b : input) {
+            if (b == LEGACY_SPLIT_KEY) {
+                count++;
+            }
+        }
+
+        byte[] output = new byte[count];
+        int value = 0, index = 0;
+        for (byte b : input) {
+            if (b == LEGACY_SPLIT_KEY) {
+                output[index++] = (byte) value;
+                value = 0;
+            } else {
+                int digit = Character.digit(b, 16);
+                if (digit < 0) {
+                    throw new RuntimeException("invalid YACipher value");
+                }
+
+                // Negative bytes were written as 8 digit ints, only the low byte matters
+                value = (value << 4) | digit;
+            }
+        }
+
+        output[index] = (byte) value;
+        return output;
     }
 }
@@ -0,0 +1,30 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+package org.frknkrc44.minidb;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Default executor of the async API on Java 21 and newer, every task
+ * gets its own virtual thread, so blocked callers don't hold platform threads
+ */
+final class AsyncExecutors {
+    private AsyncExecutors() {}
+
+    static Executor shared() {
+        return Holder.SHARED;
+    }
+
+    private static final class Holder {
+        static final Executor SHARED = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("SuperMiniDB-async-", 0).factory());
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Atomic updates are ordered with the other writers of their key, and
+ * their mappings may use the database next to batches on the same keys
+ */
+class AtomicUpdateTest {
+    private static final int THREADS = 8;
+    private static final int KEYS = 20;
+    private static final int OPS_PER_THREAD = 200;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void mappingsMayUseTheDatabase() throws Exception {
+        SuperMiniDB db = open();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    String other = "o" + (i % KEYS);
+                    if (thread % 2 == 0) {
+                        db.computeIfAbsent("c" + thread + "_" + i, key -> {
+                            db.putString(other, key, true);
+                            return "v";
+                        }, true);
+                        db.merge("m" + (i % KEYS), "1", (current, value) -> db.getString(other, "") + value, true);
+                    } else {
+                        WriteBatch batch = new WriteBatch();
+                        for (int k = 0; k < KEYS; k++) {
+                            batch.putString("o" + k, "b").putString("m" + k, "b");
+                        }
+                        db.write(batch);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            // Times out on a deadlock
+            future.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+
+        for (int t = 0; t < THREADS; t += 2) {
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                assertEquals("v", db.getString("c" + t + "_" + i, null), "value of c" + t + "_" + i);
+            }
+        }
+        db.removeDB();
+        db.close();
+    }
+
+    @Test
+    void permanentCountersMatchTheDisk() throws Exception {
+        SuperMiniDB db = open();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    db.incrementAndGet("n" + (i % KEYS), true);
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+        db.close();
+
+        SuperMiniDB reopened = open();
+        for (int k = 0; k < KEYS; k++) {
+            assertEquals(THREADS * OPS_PER_THREAD / KEYS, reopened.getLong("n" + k, -1), "value of n" + k);
+        }
+        reopened.removeDB();
+        reopened.close();
+    }
+
+    private SuperMiniDB open() {
+        return new SuperMiniDB("atomic", dir, new DBOptions()
+                .setSyncPolicy(SuperMiniDB.SYNC_NEVER)
+                .setLogProvider(message -> {}));
+    }
+}
@@ -0,0 +1,145 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every codec round-trips, and values which are too small or don't
+ * compress well enough are stored as they are
+ */
+class CompressorTest {
+    private static final int THRESHOLD = 64;
+    private static final String[] POLICIES = {
+            SuperMiniDB.COMPRESSION_LZ, SuperMiniDB.COMPRESSION_DEFLATE, SuperMiniDB.COMPRESSION_AUTO};
+
+    @Test
+    void lzBlocksRoundTrip() {
+        Random random = new Random(21);
+        List<byte[]> inputs = new ArrayList<>();
+        inputs.add(new byte[0]);
+        for (int length = 1; length <= 20; length++) {
+            inputs.add(text(length));
+        }
+        inputs.add(new byte[70_000]);
+        inputs.add(text(100_000));
+
+        byte[] noise = new byte[5000];
+        random.nextBytes(noise);
+        inputs.add(noise);
+
+        // A repeat just within the largest offset
+        byte[] far = new byte[70_000];
+        random.nextBytes(far);
+        System.arraycopy(far, 0, far, 65_535, 1000);
+        inputs.add(far);
+
+        for (byte[] input : inputs) {
+            byte[] block = new byte[LZCodec.maxCompressedLength(input.length)];
+            int length = LZCodec.compress(input, block, 0);
+            assertTrue(length <= block.length, "block of " + input.length + " bytes fits");
+
+            byte[] out = new byte[input.length];
+            LZCodec.decompress(block, 0, out);
+            assertArrayEquals(input, out);
+        }
+    }
+
+    @Test
+    void valuesRoundTrip() {
+        for (String policy : POLICIES) {
+            Compressor compressor = new Compressor(policy, THRESHOLD, null);
+            for (int length : new int[]{THRESHOLD, THRESHOLD + 1, 1000, 100_000}) {
+                byte[] plain = text(length);
+                byte[] compressed = compressor.compress(plain);
+                assertTrue(Compressor.isCompressed(compressed), policy + " compresses " + length + " bytes");
+                assertTrue(compressed.length < plain.length, policy + " saves space");
+                assertArrayEquals(plain, compressor.decompress(compressed));
+            }
+        }
+    }
+
+    @Test
+    void smallAndEmptyValuesAreKept() {
+        for (String policy : POLICIES) {
+            Compressor compressor = new Compressor(policy, THRESHOLD, null);
+            byte[] empty = new byte[0];
+            byte[] belowThreshold = text(THRESHOLD - 1);
+            assertTrue(compressor.skips(belowThreshold.length));
+            assertFalse(compressor.skips(THRESHOLD));
+            assertSame(empty, compressor.compress(empty));
+            assertSame(belowThreshold, compressor.compress(belowThreshold));
+        }
+
+        byte[] plain = text(1000);
+        assertSame(plain, new Compressor(SuperMiniDB.COMPRESSION_NONE, THRESHOLD, null).compress(plain));
+    }
+
+    @Test
+    void incompressibleValuesAreKept() {
+        byte[] noise = new byte[4096];
+        new Random(5).nextBytes(noise);
+        for (String policy : POLICIES) {
+            assertSame(noise, new Compressor(policy, THRESHOLD, null).compress(noise));
+        }
+    }
+
+    @Test
+    void dictionaryValuesNeedTheirDictionary() {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            samples.add(record(i));
+        }
+        byte[] dictionary = Compressor.train(samples, 1024);
+        assertTrue(dictionary.length > 0 && dictionary.length <= 1024);
+
+        Compressor withDictionary = new Compressor(SuperMiniDB.COMPRESSION_DEFLATE, THRESHOLD, dictionary);
+        Compressor plainDeflate = new Compressor(SuperMiniDB.COMPRESSION_DEFLATE, THRESHOLD, null);
+        byte[] plain = record(1000);
+        byte[] compressed = withDictionary.compress(plain);
+        assertEquals(Compressor.CODEC_DEFLATE_DICT, compressed[2]);
+        assertTrue(compressed.length < plainDeflate.compress(plain).length, "the dictionary helps");
+        assertArrayEquals(plain, withDictionary.decompress(compressed));
+
+        boolean failed = false;
+        try {
+            plainDeflate.decompress(compressed);
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        assertTrue(failed, "decoding without the dictionary fails");
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder out = new StringBuilder();
+        while (out.length() < length) {
+            out.append("the quick brown fox jumps over the lazy dog ");
+        }
+        return out.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] record(int id) {
+        return ("{\"id\":" + id + ",\"type\":\"customer\",\"status\":\"active\",\"country\":\"TR\","
+                + "\"created\":\"2023-01-01T00:00:00Z\",\"tags\":[\"new\",\"mobile\"]}")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+}
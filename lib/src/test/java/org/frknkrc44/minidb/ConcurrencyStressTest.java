@@ -0,0 +1,135 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Many threads put, remove, batch and flush at once, then the memory
+ * and the reopened storage must have the last value of every key.
+ * Every thread owns its keys, so the last value is known.
+ */
+class ConcurrencyStressTest {
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 100;
+    private static final int OPS_PER_THREAD = 2000;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void legacyEngineKeepsTheLastValues() throws Exception {
+        stress(SuperMiniDB.STORAGE_ENGINE_LEGACY);
+    }
+
+    @Test
+    void logEngineKeepsTheLastValues() throws Exception {
+        stress(SuperMiniDB.STORAGE_ENGINE_LOG);
+    }
+
+    private void stress(String engine) throws Exception {
+        // Ordering is tested, not durability, syncs only slow it down
+        DBOptions options = new DBOptions()
+                .setStorageEngine(engine)
+                .setWriteBehind(true)
+                .setSyncPolicy(SuperMiniDB.SYNC_NEVER)
+                .setLogProvider(message -> {});
+        SuperMiniDB db = new SuperMiniDB("stress", dir, options);
+
+        List<Map<String, String>> expected = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            Map<String, String> own = new HashMap<>();
+            expected.add(own);
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                run(db, thread, own);
+                return null;
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        db.flush().join();
+        check(db, expected, "memory");
+        db.close();
+
+        SuperMiniDB reopened = new SuperMiniDB("stress", dir, options);
+        try {
+            check(reopened, expected, "storage");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static void run(SuperMiniDB db, int thread, Map<String, String> own) {
+        Random random = new Random(thread);
+        for (int i = 0; i < OPS_PER_THREAD; i++) {
+            String key = keyOf(thread, random.nextInt(KEYS_PER_THREAD));
+            String value = thread + ":" + i;
+            int op = random.nextInt(20);
+            if (op < 2) {
+                db.removeKeyFromDB(key);
+                own.remove(key);
+            } else if (op < 4) {
+                WriteBatch batch = new WriteBatch();
+                for (int j = 0; j < 4; j++) {
+                    String batchKey = keyOf(thread, random.nextInt(KEYS_PER_THREAD));
+                    batch.putString(batchKey, value + "/" + j);
+                    own.put(batchKey, value + "/" + j);
+                }
+                batch.remove(key);
+                own.remove(key);
+                db.write(batch);
+            } else if (op < 5) {
+                db.flush();
+            } else {
+                db.putString(key, value, true);
+                own.put(key, value);
+            }
+        }
+    }
+
+    private static void check(SuperMiniDB db, List<Map<String, String>> expected, String where) {
+        int count = 0;
+        for (int t = 0; t < THREADS; t++) {
+            Map<String, String> own = expected.get(t);
+            count += own.size();
+            for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                String key = keyOf(t, k);
+                assertEquals(own.get(key), db.getString(key, null), where + " value of " + key);
+            }
+        }
+
+        assertEquals(count, db.getLength(), where + " key count");
+    }
+
+    private static String keyOf(int thread, int index) {
+        return "t" + thread + "-k" + index;
+    }
+}
@@ -0,0 +1,128 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A key has at most one timer, and expired keys are never listed or
+ * counted, even before the timer removes them
+ */
+class ExpiryTest {
+    private static final int KEYS = 100;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void schedulingAgainMovesTheEntry() {
+        List<String> expired = new ArrayList<>();
+        TimerWheel wheel = new TimerWheel("test", 100, expired::addAll, message -> {});
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            wheel.schedule("k", now + 60_000 + i);
+        }
+        assertEquals(1, wheel.size());
+
+        wheel.schedule("k", now + 1000);
+        assertEquals(Arrays.asList("k"), wheel.advance(now + 2000));
+        assertEquals(0, wheel.size());
+
+        wheel.schedule("k", now + 60_000);
+        wheel.schedule("k", 0);
+        assertEquals(0, wheel.size());
+        assertEquals(0, wheel.advance(now + 120_000).size());
+        wheel.close();
+    }
+
+    @Test
+    void expiredKeysAreNotListed() throws InterruptedException {
+        for (String engine : new String[]{SuperMiniDB.STORAGE_ENGINE_LEGACY, SuperMiniDB.STORAGE_ENGINE_LOG}) {
+            SuperMiniDB db = open(engine);
+            for (int i = 0; i < KEYS; i++) {
+                db.putString("live" + i, "v", true);
+                db.putString("ttl" + i, "v", true, 50);
+            }
+            db.flush().join();
+            Thread.sleep(60);
+
+            assertListed(db, engine);
+            db.close();
+
+            SuperMiniDB reopened = open(engine);
+            assertListed(reopened, engine + " reopened");
+            reopened.removeDB();
+            reopened.close();
+        }
+    }
+
+    @Test
+    void lazyLoadSchedulesStoredExpiry() throws Exception {
+        for (String engine : new String[]{SuperMiniDB.STORAGE_ENGINE_LEGACY, SuperMiniDB.STORAGE_ENGINE_LOG}) {
+            SuperMiniDB db = open(engine);
+            for (int i = 0; i < KEYS; i++) {
+                db.putString("live" + i, "v", true);
+                db.putString("ttl" + i, "v", true, 500);
+            }
+            db.close();
+
+            SuperMiniDB lazy = new SuperMiniDB("expiry", dir, new DBOptions()
+                    .setStorageEngine(engine)
+                    .setLazyLoad(true)
+                    .setLogProvider(message -> {}));
+            Thread.sleep(1000);
+
+            // Removed by the wheel, never read
+            assertListed(lazy, engine + " lazy");
+            lazy.close();
+            assertEquals(KEYS, storedKeys(engine), engine + " stored keys");
+
+            SuperMiniDB reopened = open(engine);
+            reopened.removeDB();
+            reopened.close();
+        }
+    }
+
+    private int storedKeys(String engine) throws IOException {
+        int[] count = {0};
+        StorageEngine storage = SuperMiniDB.STORAGE_ENGINE_LOG.equals(engine)
+                ? new LogStorageEngine(new File(dir, "smdb-log/expiry"), message -> {}, false, SuperMiniDB.SYNC_NEVER)
+                : new LegacyStorageEngine(new File(dir, "smdb/expiry"), message -> {}, SuperMiniDB.SYNC_NEVER);
+        storage.loadKeys((key, expiresAt) -> count[0]++);
+        storage.close();
+        return count[0];
+    }
+
+    private void assertListed(SuperMiniDB db, String message) {
+        assertEquals(KEYS, db.getLength(), message + " key count");
+        assertEquals(KEYS, db.getKeys(true, false).length, message + " keys");
+        assertEquals(KEYS, db.getKeys("", null, 0).length, message + " paged keys");
+        assertEquals(0, db.getKeys("ttl", null, 0).length, message + " expired keys");
+        assertEquals(KEYS, db.getKeysInRange(null, null, 0).length, message + " key range");
+        assertFalse(db.isDBContainsKey("ttl0"), message + " contains");
+    }
+
+    private SuperMiniDB open(String engine) {
+        return new SuperMiniDB("expiry", dir, new DBOptions()
+                .setStorageEngine(engine)
+                .setLogProvider(message -> {}));
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Exporting only adds the values, the other files of the target
+ * and the ones next to it stay as they are
+ */
+class ExportTest {
+    private static final int KEYS = 100;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void exportLeavesOtherFilesAlone() throws IOException {
+        File target = new File(dir, "smdb" + File.separator + "copy");
+        File notes = new File(target, "notes.txt");
+        File temp = new File(target, ".tmp");
+        File journal = new File(target.getParentFile(), "copy.journal");
+        target.mkdirs();
+        temp.mkdirs();
+        write(notes, "notes");
+        write(new File(temp, "draft.txt"), "draft");
+        write(journal, "journal");
+
+        SuperMiniDB db = open("export");
+        for (int i = 0; i < KEYS; i++) {
+            db.putString("k" + i, "v" + i, true);
+        }
+        db.exportToDir(target);
+        db.removeDB();
+        db.close();
+
+        assertEquals("notes", read(notes));
+        assertEquals("draft", read(new File(temp, "draft.txt")));
+        assertEquals("journal", read(journal));
+        String[] others = target.list((d, name) -> name.length() != 2);
+        Arrays.sort(others);
+        assertArrayEquals(new String[]{".tmp", "notes.txt"}, others);
+
+        SuperMiniDB copy = open("copy");
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("v" + i, copy.getString("k" + i, null), "value of k" + i);
+        }
+        copy.close();
+    }
+
+    private SuperMiniDB open(String name) {
+        return new SuperMiniDB(name, dir, new DBOptions()
+                .setStorageEngine(SuperMiniDB.STORAGE_ENGINE_LEGACY)
+                .setLogProvider(message -> {}));
+    }
+
+    private static void write(File f, String text) throws IOException {
+        Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(File f) throws IOException {
+        return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+    }
+}
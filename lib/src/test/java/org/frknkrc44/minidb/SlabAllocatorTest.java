@@ -0,0 +1,92 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Free blocks and slab tails are reused before a new slab is taken,
+ * and the slabs are dropped when every block is freed
+ */
+class SlabAllocatorTest {
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    @Test
+    void slabTailsAreReused() {
+        SlabAllocator slabs = new SlabAllocator();
+        byte[] small = value(100, 1);
+        ValueHolder.OffHeap first = slabs.allocate(small);
+        slabs.allocate(value(3 * 1024 * 1024, 2));
+        assertEquals(2L * SLAB_SIZE, slabs.reservedBytes());
+
+        // The first slab has all but 128 bytes free in smaller blocks
+        List<ValueHolder.OffHeap> fromTail = new ArrayList<>();
+        for (int size = 2 * 1024 * 1024; size >= 128; size /= 2) {
+            fromTail.add(slabs.allocate(value(size, size)));
+        }
+        assertEquals(2L * SLAB_SIZE, slabs.reservedBytes());
+
+        assertArrayEquals(small, slabs.read(first));
+        for (ValueHolder.OffHeap holder : fromTail) {
+            assertArrayEquals(value(holder.length, holder.length), slabs.read(holder));
+        }
+    }
+
+    @Test
+    void largeFreeBlocksAreSplit() {
+        SlabAllocator slabs = new SlabAllocator();
+        ValueHolder.OffHeap keep = slabs.allocate(value(10, 3));
+        ValueHolder.OffHeap large = slabs.allocate(value(2 * 1024 * 1024, 4));
+        slabs.free(large);
+        assertNull(slabs.read(large));
+
+        // More than the tail of the slab, less than the tail and the freed block
+        for (int i = 0; i < 3000; i++) {
+            slabs.allocate(value(1000, i));
+        }
+        assertEquals(SLAB_SIZE, slabs.reservedBytes());
+        assertArrayEquals(value(10, 3), slabs.read(keep));
+    }
+
+    @Test
+    void slabsAreDroppedWhenEverythingIsFreed() {
+        SlabAllocator slabs = new SlabAllocator();
+        List<ValueHolder> holders = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            holders.add(slabs.allocate(value(16 + i % 4000, i)));
+        }
+        slabs.freeAll(holders);
+        assertEquals(0, slabs.reservedBytes());
+        assertEquals(0, slabs.usedBytes());
+
+        ValueHolder.OffHeap again = slabs.allocate(value(500, 5));
+        assertArrayEquals(value(500, 5), slabs.read(again));
+        assertEquals(SLAB_SIZE, slabs.reservedBytes());
+
+        slabs.close();
+        assertEquals(0, slabs.reservedBytes());
+    }
+
+    private static byte[] value(int length, int seed) {
+        byte[] out = new byte[length];
+        for (int i = 0; i < length; i++) {
+            out[i] = (byte) (seed + i);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A group commit of the write-behind flusher must never write an
+ * older value over a newer one which is persisted meanwhile, and
+ * without the flusher a permanent write is on the disk when it returns
+ */
+class WriteBehindTest {
+    private static final int KEYS = 1000;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void batchAfterPutsIsNotOverwritten() {
+        for (String engine : new String[]{SuperMiniDB.STORAGE_ENGINE_LEGACY, SuperMiniDB.STORAGE_ENGINE_LOG}) {
+            SuperMiniDB db = open(engine);
+            WriteBatch batch = new WriteBatch();
+            for (int i = 0; i < KEYS; i++) {
+                db.putString("k" + i, "old", true);
+                batch.putString("k" + i, "new");
+            }
+            db.write(batch);
+            db.flush().join();
+            db.close();
+
+            SuperMiniDB reopened = open(engine);
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals("new", reopened.getString("k" + i, null), engine + " value of k" + i);
+            }
+            reopened.removeDB();
+            reopened.close();
+        }
+    }
+
+    @Test
+    void batchRemovalsAreNotUndone() {
+        for (String engine : new String[]{SuperMiniDB.STORAGE_ENGINE_LEGACY, SuperMiniDB.STORAGE_ENGINE_LOG}) {
+            SuperMiniDB db = open(engine);
+            WriteBatch batch = new WriteBatch();
+            for (int i = 0; i < KEYS; i++) {
+                db.putString("k" + i, "old", true);
+                batch.remove("k" + i);
+            }
+            db.write(batch);
+            db.flush().join();
+            db.close();
+
+            SuperMiniDB reopened = open(engine);
+            for (int i = 0; i < KEYS; i++) {
+                assertNull(reopened.getString("k" + i, null), engine + " value of k" + i);
+            }
+            assertEquals(0, reopened.getLength(), engine + " key count");
+            reopened.removeDB();
+            reopened.close();
+        }
+    }
+
+    @Test
+    void writesAreSynchronousByDefault() {
+        for (String engine : new String[]{SuperMiniDB.STORAGE_ENGINE_LEGACY, SuperMiniDB.STORAGE_ENGINE_LOG}) {
+            SuperMiniDB db = new SuperMiniDB("sync", dir, new DBOptions()
+                    .setStorageEngine(engine)
+                    .setLogProvider(message -> {}));
+            for (int i = 0; i < KEYS; i++) {
+                db.putString("k" + i, "v" + i, true);
+            }
+            db.removeKeyFromDB("k0");
+
+            // Never flushed or closed, like a caller which exits right away
+            SuperMiniDB other = new SuperMiniDB("sync", dir, new DBOptions()
+                    .setStorageEngine(engine)
+                    .setLogProvider(message -> {}));
+            assertNull(other.getString("k0", null), engine + " removed key");
+            for (int i = 1; i < KEYS; i++) {
+                assertEquals("v" + i, other.getString("k" + i, null), engine + " value of k" + i);
+            }
+            other.removeDB();
+            other.close();
+            db.close();
+        }
+    }
+
+    private SuperMiniDB open(String engine) {
+        return new SuperMiniDB("wb", dir, new DBOptions()
+                .setStorageEngine(engine)
+                .setWriteBehind(true)
+                .setLogProvider(message -> {}));
+    }
+}
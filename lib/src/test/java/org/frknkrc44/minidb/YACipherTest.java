@@ -0,0 +1,103 @@
+// Copyright (C) 2023 frknkrc44 <krc440002@gmail.com>
+//
+// This file is part of SuperMiniDB project,
+// and licensed under GNU Affero General Public License v3.
+// See the GNU Affero General Public License for more details.
+//
+// All rights reserved. See COPYING, AUTHORS.
+//
+
+
+package org.frknkrc44.minidb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Values of the current format round-trip, and values which were
+ * written in the hex format of the first versions still decode
+ */
+class YACipherTest {
+    private static final byte[][] KEYS = {
+            "k".getBytes(StandardCharsets.UTF_8),
+            "key!".getBytes(StandardCharsets.UTF_8),
+            "a longer, odd key".getBytes(StandardCharsets.UTF_8),
+            {(byte) 0x80, (byte) 0xFF, 0x00, 0x7F, (byte) 0xC3},
+    };
+
+    @Test
+    void currentFormatRoundTrips() {
+        Random random = new Random(12);
+        for (byte[] key : KEYS) {
+            YACipher cipher = new YACipher(key);
+            for (int length = 0; length <= 600; length += length < 20 ? 1 : 37) {
+                byte[] input = new byte[length];
+                random.nextBytes(input);
+                byte[] original = input.clone();
+
+                byte[] encoded = cipher.encode(input);
+                assertArrayEquals(original, input);
+                assertEquals(1 + length, encoded.length);
+                assertEquals(2, encoded[0]);
+                assertArrayEquals(original, cipher.decode(encoded));
+            }
+        }
+    }
+
+    @Test
+    void partOfTheInputRoundTrips() {
+        YACipher cipher = new YACipher(KEYS[1]);
+        byte[] input = new byte[300];
+        new Random(3).nextBytes(input);
+
+        byte[] encoded = cipher.encode(input, 17, 260);
+        assertArrayEquals(Arrays.copyOfRange(input, 17, 277), cipher.decode(encoded));
+    }
+
+    @Test
+    void legacyFormatDecodes() {
+        Random random = new Random(7);
+        for (byte[] key : KEYS) {
+            YACipher cipher = new YACipher(key);
+            for (int length = 1; length <= 600; length += length < 20 ? 1 : 37) {
+                byte[] input = new byte[length];
+                random.nextBytes(input);
+                assertArrayEquals(input, cipher.decode(legacyEncode(key, input.clone())));
+            }
+        }
+    }
+
+    @Test
+    void legacyValueOfTheFirstVersionDecodes() {
+        // Written by the first version under the key "key!", negative bytes as 8 digit ints
+        YACipher cipher = new YACipher(KEYS[1]);
+        assertArrayEquals("hi".getBytes(StandardCharsets.UTF_8),
+                cipher.decode("3e\u001B3f".getBytes(StandardCharsets.US_ASCII)));
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x01},
+                cipher.decode("ffffffd6\u001B57".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * The encoder of the first version, it XORed the input in place
+     */
+    private static byte[] legacyEncode(byte[] key, byte[] input) {
+        for (int i = 0; i < input.length; i++) {
+            for (int j = 0; j < key.length; j++) {
+                input[i] ^= key[j] ^ i ^ j;
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (byte item : input) {
+            out.append(Integer.toHexString(item)).append((char) 0x1B);
+        }
+        out.setLength(out.length() - 1);
+        return out.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}